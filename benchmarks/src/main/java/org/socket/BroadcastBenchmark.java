@@ -0,0 +1,76 @@
+package org.socket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures publishing one state change to 1, 100 and 10 000 subscribers.
+ * This is the work {@link TCPServer#broadcastStateChange(StateEvent)} does on the
+ * command path. Subscribers write to a discarding stream so that thousands of them
+ * fit in one process without opening real sockets.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BroadcastBenchmark {
+
+    @Param({"1", "100", "10000"})
+    public int subscribers;
+
+    @Param({"EVERY_EVENT", "LATEST_STATE"})
+    public SubscriptionMode mode;
+
+    private BroadcastHub hub;
+    private long version;
+
+    @Setup
+    public void setUp() throws IOException {
+        hub = new BroadcastHub();
+        hub.setSubscriptionMode(mode);
+        for (int i = 0; i < subscribers; i++) {
+            hub.subscribe(new DiscardingSocket());
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        hub.close();
+    }
+
+    @Benchmark
+    public void publish() {
+        version++;
+        long state = TVState.pack(true, (int) (version % TVState.MAX_CHANNEL) + 1, version);
+        hub.publish(TCPServer.DEFAULT_DEVICE, StateEvent.Type.CHANNEL, state);
+    }
+
+    /**
+     * An unconnected socket whose output is thrown away.
+     */
+    private static final class DiscardingSocket extends Socket {
+        private final OutputStream out = OutputStream.nullOutputStream();
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package org.socket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link TCPServer#executeCommand(Commands)} without any network I/O,
+ * from a single thread and with several threads updating the same TV state.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandBenchmark {
+
+    private static final int PORT = 24000;
+
+    @Param({"STATUS", "CHANNEL_UP", "TURN_ON_OR_OFF"})
+    public String command;
+
+    private TCPServer server;
+    private Commands parsedCommand;
+
+    @Setup
+    public void setUp() {
+        server = new TCPServer("127.0.0.1", PORT, 1);
+        server.executeCommand(Commands.TURN_ON);
+        parsedCommand = Commands.valueOf(command);
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String singleThreaded() {
+        return server.executeCommand(parsedCommand);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String contended() {
+        return server.executeCommand(parsedCommand);
+    }
+}
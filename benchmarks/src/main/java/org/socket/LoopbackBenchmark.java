@@ -0,0 +1,89 @@
+package org.socket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures request/response throughput and latency over loopback through
+ * {@link TCPClient#sendCommand(Commands)}, for each execution mode and wire protocol.
+ * Every benchmark thread has its own connection.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopbackBenchmark {
+
+    private static final String HOST = "127.0.0.1";
+    private static final int PORT = 24100;
+
+    @State(Scope.Benchmark)
+    public static class ServerState {
+
+        @Param({"PLATFORM_POOL", "VIRTUAL_THREAD", "NIO_EVENT_LOOP"})
+        public ExecutionMode executionMode;
+
+        private TCPServer server;
+
+        @Setup
+        public void start() {
+            server = new TCPServer(HOST, PORT, 8, executionMode);
+            Thread serverThread = new Thread(server::start, "benchmark-server");
+            serverThread.setDaemon(true);
+            serverThread.start();
+        }
+
+        @TearDown
+        public void stop() {
+            server.shutdown();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ClientState {
+
+        @Param({"TEXT", "BINARY"})
+        public WireProtocol protocol;
+
+        private TCPClient client;
+
+        @Setup
+        public void connect(ServerState serverState) {
+            client = new TCPClient(HOST, PORT, protocol);
+            if (!client.isConnected()) {
+                throw new IllegalStateException("Could not connect to " + HOST + ":" + PORT);
+            }
+        }
+
+        @TearDown
+        public void disconnect() {
+            client.closeConnection();
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String singleClient(ClientState state) {
+        return state.client.sendCommand(Commands.STATUS);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String concurrentClients(ClientState state) {
+        return state.client.sendCommand(Commands.STATUS);
+    }
+}
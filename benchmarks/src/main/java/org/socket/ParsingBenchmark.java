@@ -0,0 +1,86 @@
+package org.socket;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures command lookup and request decoding. {@link #session()} feeds a request
+ * through the same {@link CommandSession} that {@link ClientHandler} and the NIO engine
+ * use, so it covers the per-request work of a connection minus the socket itself.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParsingBenchmark {
+
+    private static final int PORT = 24050;
+
+    @Param({"5", "13"})
+    public int code;
+
+    private byte[] request;
+    private CommandCodec.LineDecoder decoder;
+    private TCPServer server;
+    private CommandSession session;
+
+    @Setup
+    public void setUp() {
+        request = (" " + code + " " + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+        decoder = new CommandCodec.LineDecoder();
+        server = new TCPServer("127.0.0.1", PORT, 1);
+        session = new CommandSession(server, new EventOutputStream() {
+            @Override
+            protected void deliver(byte[] batch, int length) {
+                // The benchmark never subscribes to events
+            }
+        }, () -> { }, "benchmark");
+    }
+
+    @TearDown
+    public void tearDown() {
+        server.shutdown();
+    }
+
+    @Benchmark
+    public Commands fromIntValue() {
+        return Commands.fromIntValue(code);
+    }
+
+    @Benchmark
+    public int decodeLine() {
+        int result = CommandCodec.NEED_MORE;
+        for (byte b : request) {
+            int decoded = decoder.accept(b);
+            if (decoded != CommandCodec.NEED_MORE) {
+                result = decoded;
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public int session() {
+        for (byte b : request) {
+            session.receive(b);
+        }
+        int written = session.output().position();
+        session.output().clear();
+        return written;
+    }
+}
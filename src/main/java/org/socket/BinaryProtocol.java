@@ -0,0 +1,345 @@
+package org.socket;
+
+/**
+ * Compact framed protocol for automation clients that never read the English responses.
+ * <p>
+ * A binary client opens the connection with {@link #MAGIC} followed by a version byte,
+ * which the server echoes back. The magic byte is not valid ASCII, so the server can
+ * tell binary and text clients apart on the first byte. After that:
+ * <ul>
+ *     <li>A request is a one-byte opcode (the {@link Commands} code). If the opcode has
+ *     {@link #PAYLOAD_FLAG} set it is followed by a length byte and that many payload bytes.
+ *     A payload of {@link #DEVICE_ID_LENGTH} bytes is the big-endian ID of the device the
+ *     command is for; without it the command goes to {@link TCPServer#DEFAULT_DEVICE}.</li>
+ *     <li>A response is a status byte followed by a state byte holding the power flag
+ *     in the high bit and the channel in the low bits.</li>
+ *     <li>After SUBSCRIBE, state events arrive between the responses as event frames: a
+ *     byte with {@link #EVENT_FLAG} set and the {@link StateEvent.Type} ordinal in the low
+ *     bits, a length byte and a payload of the sequence number, device ID, state byte and
+ *     version. Status bytes never have the flag set, so the two cannot be confused.</li>
+ * </ul>
+ * Responses carry no text, so STATS and GET_STATE are answered like STATUS; use the
+ * text protocol or JMX to read the metrics, and state events to learn state versions.
+ */
+public final class BinaryProtocol {
+
+    public static final byte MAGIC = (byte) 0xB7;
+    public static final byte VERSION = 1;
+
+    public static final int PAYLOAD_FLAG = 0x80;
+    public static final int OPCODE_MASK = 0x7F;
+
+    /** The command changed the TV state, or was a query that succeeded. */
+    public static final int STATUS_OK = 0;
+    /** The command was valid but the TV was already in the requested state. */
+    public static final int STATUS_UNCHANGED = 1;
+    /** The command was refused because the TV is off. */
+    public static final int STATUS_REJECTED = 2;
+    /** The opcode does not match any command. */
+    public static final int STATUS_UNKNOWN_COMMAND = 3;
+    /** The addressed device is not hosted by the server. */
+    public static final int STATUS_UNKNOWN_DEVICE = 4;
+
+    /** The payload length of a request addressed to a device. */
+    public static final int DEVICE_ID_LENGTH = 4;
+
+    /** Set in the first byte of an event frame, which is never set in a status byte. */
+    public static final int EVENT_FLAG = 0x80;
+    /** The payload length of an event frame: sequence, device ID, state byte and version. */
+    public static final int EVENT_PAYLOAD_LENGTH = 8 + 4 + 1 + 8;
+    /** The size of a whole event frame. */
+    public static final int EVENT_FRAME_LENGTH = 2 + EVENT_PAYLOAD_LENGTH;
+
+    /** Returned by {@link FrameDecoder#accept(byte)} once the client greeting is complete. */
+    public static final int HELLO = -3;
+
+    private static final int POWER_FLAG = 0x80;
+    private static final int CHANNEL_MASK = 0x7F;
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Derives the response status for a command from the state it produced.
+     *
+     * @param command The executed command
+     * @param state The state word returned by {@link TCPServer#applyCommand(Commands)}
+     * @return One of the STATUS constants
+     */
+    public static int status(Commands command, long state) {
+        if (TVState.changed(state)) {
+            return STATUS_OK;
+        }
+        switch (command) {
+            case TURN_ON:
+            case TURN_OFF:
+                return STATUS_UNCHANGED;
+            case CHANNEL_UP:
+            case CHANNEL_DOWN:
+            case CHANNEL_1:
+            case CHANNEL_2:
+            case CHANNEL_3:
+            case CHANNEL_4:
+            case CHANNEL_5:
+                return TVState.isOn(state) ? STATUS_UNCHANGED : STATUS_REJECTED;
+            default:
+                return STATUS_OK;
+        }
+    }
+
+    /**
+     * Packs the power flag and channel of a state word into one byte.
+     *
+     * @param state A state word, see {@link TVState}
+     * @return The packed state byte
+     */
+    public static int packState(long state) {
+        return (TVState.isOn(state) ? POWER_FLAG : 0) | (TVState.channel(state) & CHANNEL_MASK);
+    }
+
+    /**
+     * Combines a status byte and a state byte into the value returned by
+     * {@link TCPClient#sendCommandRaw(Commands)}.
+     *
+     * @param status The status byte
+     * @param packedState The state byte
+     * @return The combined response
+     */
+    public static int response(int status, int packedState) {
+        return ((status & 0xFF) << 8) | (packedState & 0xFF);
+    }
+
+    public static int statusOf(int response) {
+        return (response >>> 8) & 0xFF;
+    }
+
+    public static boolean isOn(int response) {
+        return (response & POWER_FLAG) != 0;
+    }
+
+    public static int channelOf(int response) {
+        return response & CHANNEL_MASK;
+    }
+
+    /**
+     * Renders a binary response for humans.
+     *
+     * @param response A combined response
+     * @return A description such as "OK (TV is ON, Channel: 3)"
+     */
+    public static String describe(int response) {
+        String status;
+        switch (statusOf(response)) {
+            case STATUS_OK:
+                status = "OK";
+                break;
+            case STATUS_UNCHANGED:
+                status = "UNCHANGED";
+                break;
+            case STATUS_REJECTED:
+                status = "REJECTED";
+                break;
+            case STATUS_UNKNOWN_COMMAND:
+                status = "UNKNOWN COMMAND";
+                break;
+            case STATUS_UNKNOWN_DEVICE:
+                status = "UNKNOWN DEVICE";
+                break;
+            default:
+                status = "STATUS " + statusOf(response);
+        }
+        return status + " (TV is " + (isOn(response) ? "ON" : "OFF") + ", Channel: " + channelOf(response) + ")";
+    }
+
+    /**
+     * Gets the size of a request frame addressed to the given device.
+     *
+     * @param deviceId The device the request is for
+     * @return The frame length in bytes
+     */
+    public static int requestLength(int deviceId) {
+        return deviceId == TCPServer.DEFAULT_DEVICE ? 1 : 2 + DEVICE_ID_LENGTH;
+    }
+
+    /**
+     * Encodes one request frame, with a device ID payload unless the request is for
+     * the default device.
+     *
+     * @param command The command to send
+     * @param deviceId The device the command is for
+     * @param buffer The buffer to write to, with at least {@link #requestLength(int)} bytes free
+     * @param offset The position to write at
+     * @return The position after the frame
+     */
+    public static int encodeRequest(Commands command, int deviceId, byte[] buffer, int offset) {
+        return encodeRequest(command, deviceId, deviceId != TCPServer.DEFAULT_DEVICE, buffer, offset);
+    }
+
+    /**
+     * Encodes one request frame, with a device ID payload if asked for. Naming the default
+     * device explicitly matters for SUBSCRIBE, which is then limited to that device.
+     *
+     * @param command The command to send
+     * @param deviceId The device the command is for
+     * @param addressed Whether to include the device ID even for the default device
+     * @param buffer The buffer to write to, with at least {@code 2 + DEVICE_ID_LENGTH} bytes free
+     * @param offset The position to write at
+     * @return The position after the frame
+     */
+    public static int encodeRequest(Commands command, int deviceId, boolean addressed, byte[] buffer, int offset) {
+        if (!addressed) {
+            buffer[offset] = (byte) command.getCode();
+            return offset + 1;
+        }
+        buffer[offset] = (byte) (command.getCode() | PAYLOAD_FLAG);
+        buffer[offset + 1] = (byte) DEVICE_ID_LENGTH;
+        buffer[offset + 2] = (byte) (deviceId >>> 24);
+        buffer[offset + 3] = (byte) (deviceId >>> 16);
+        buffer[offset + 4] = (byte) (deviceId >>> 8);
+        buffer[offset + 5] = (byte) deviceId;
+        return offset + 2 + DEVICE_ID_LENGTH;
+    }
+
+    /**
+     * Encodes a state event as an event frame.
+     *
+     * @param event The event to send
+     * @param buffer The buffer to write to, with at least {@link #EVENT_FRAME_LENGTH} bytes free
+     * @param offset The position to write at
+     * @return The position after the frame
+     */
+    public static int encodeEvent(StateEvent event, byte[] buffer, int offset) {
+        buffer[offset] = (byte) (EVENT_FLAG | event.getType().ordinal());
+        buffer[offset + 1] = (byte) EVENT_PAYLOAD_LENGTH;
+        putLong(buffer, offset + 2, event.getSequence());
+        int deviceId = event.getDeviceId();
+        buffer[offset + 10] = (byte) (deviceId >>> 24);
+        buffer[offset + 11] = (byte) (deviceId >>> 16);
+        buffer[offset + 12] = (byte) (deviceId >>> 8);
+        buffer[offset + 13] = (byte) deviceId;
+        buffer[offset + 14] = (byte) packState(event.getState());
+        putLong(buffer, offset + 15, event.getVersion());
+        return offset + EVENT_FRAME_LENGTH;
+    }
+
+    /**
+     * Decodes the payload of an event frame.
+     *
+     * @param header The first byte of the frame
+     * @param payload The {@link #EVENT_PAYLOAD_LENGTH} payload bytes
+     * @return The event
+     * @throws IllegalArgumentException If the header names no event type or the payload
+     *                                  has the wrong length
+     */
+    public static StateEvent decodeEvent(int header, byte[] payload) {
+        StateEvent.Type[] types = StateEvent.Type.values();
+        int type = header & OPCODE_MASK;
+        if (type >= types.length || payload.length != EVENT_PAYLOAD_LENGTH) {
+            throw new IllegalArgumentException("Unknown event type " + type + " or payload length " + payload.length);
+        }
+        long sequence = getLong(payload, 0);
+        int deviceId = ((payload[8] & 0xFF) << 24) | ((payload[9] & 0xFF) << 16)
+                | ((payload[10] & 0xFF) << 8) | (payload[11] & 0xFF);
+        int packedState = payload[12] & 0xFF;
+        long state = TVState.pack(isOn(packedState), channelOf(packedState), getLong(payload, 13));
+        return new StateEvent(sequence, deviceId, types[type], state);
+    }
+
+    private static void putLong(byte[] buffer, int offset, long value) {
+        for (int i = 0; i < 8; i++) {
+            buffer[offset + i] = (byte) (value >>> (56 - 8 * i));
+        }
+    }
+
+    private static long getLong(byte[] buffer, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (buffer[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Incremental parser for binary request frames, starting with the client greeting.
+     */
+    public static final class FrameDecoder {
+
+        private static final int EXPECT_MAGIC = 0;
+        private static final int EXPECT_VERSION = 1;
+        private static final int EXPECT_OPCODE = 2;
+        private static final int EXPECT_LENGTH = 3;
+        private static final int READ_PAYLOAD = 4;
+
+        private int stage = EXPECT_MAGIC;
+        private int opcode;
+        private int remaining;
+        private int payloadLength;
+        private int payload;
+
+        /**
+         * Feeds one byte of input.
+         *
+         * @param b The next input byte
+         * @return The opcode once a full frame is read, {@link #HELLO} once the greeting
+         *         is read, {@link CommandCodec#INVALID} for a bad greeting, or
+         *         {@link CommandCodec#NEED_MORE} otherwise
+         */
+        public int accept(byte b) {
+            switch (stage) {
+                case EXPECT_MAGIC:
+                    if (b != MAGIC) {
+                        return CommandCodec.INVALID;
+                    }
+                    stage = EXPECT_VERSION;
+                    return CommandCodec.NEED_MORE;
+                case EXPECT_VERSION:
+                    stage = EXPECT_OPCODE;
+                    return HELLO;
+                case EXPECT_OPCODE:
+                    opcode = b & OPCODE_MASK;
+                    payloadLength = 0;
+                    payload = 0;
+                    if ((b & PAYLOAD_FLAG) == 0) {
+                        return opcode;
+                    }
+                    stage = EXPECT_LENGTH;
+                    return CommandCodec.NEED_MORE;
+                case EXPECT_LENGTH:
+                    remaining = b & 0xFF;
+                    payloadLength = remaining;
+                    stage = remaining == 0 ? EXPECT_OPCODE : READ_PAYLOAD;
+                    return remaining == 0 ? opcode : CommandCodec.NEED_MORE;
+                default:
+                    payload = (payload << 8) | (b & 0xFF);
+                    remaining--;
+                    if (remaining > 0) {
+                        return CommandCodec.NEED_MORE;
+                    }
+                    stage = EXPECT_OPCODE;
+                    return opcode;
+            }
+        }
+
+        /**
+         * Gets the device the last complete frame was addressed to.
+         *
+         * @return The device ID, {@link TCPServer#DEFAULT_DEVICE} for a frame without
+         *         payload, or -1 for a payload that is not a device ID
+         */
+        public int getDeviceId() {
+            if (payloadLength == 0) {
+                return TCPServer.DEFAULT_DEVICE;
+            }
+            return payloadLength == DEVICE_ID_LENGTH ? payload : -1;
+        }
+
+        /**
+         * Tells whether the last complete frame carried a device ID.
+         *
+         * @return true if the frame named its device, even the default one
+         */
+        public boolean isDeviceAddressed() {
+            return payloadLength == DEVICE_ID_LENGTH;
+        }
+    }
+}
@@ -0,0 +1,939 @@
+package org.socket;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntToLongFunction;
+
+/**
+ * Fans state change events out to the broadcast subscribers of a {@link TCPServer}.
+ * Publishing never blocks: each subscriber has a bounded outbound queue drained by its
+ * own virtual thread, so a stalled subscriber only delays itself. When a queue is full
+ * the configured {@link SlowConsumerPolicy} decides what happens.
+ * <p>
+ * Subscribers in {@link SubscriptionMode#LATEST_STATE} have no queue at all, only a slot
+ * per device holding its newest event, so their cost stays constant however fast the
+ * state changes.
+ * <p>
+ * Every published event gets the next sequence number and is kept in a bounded history.
+ * A subscriber that reconnects can ask to resume after the last number it saw: it is sent
+ * the events it missed from the history, or, if some of them have been evicted, a snapshot
+ * of every device that changed since startup, and then continues with live events.
+ * <p>
+ * Besides connections to the broadcast port, a command connection can subscribe with the
+ * SUBSCRIBE command. Its events are then written between the responses, as text lines or
+ * as binary event frames depending on the connection's {@link WireProtocol}.
+ * <p>
+ * Every subscriber may register a {@link SubscriptionFilter}. Publishing does not test the
+ * filters one by one: the subscribers are kept in an index by event type and channel, and
+ * by device for filters limited to some devices. A subscriber coming or going only copies
+ * the parts of the index it is listed in. An event is only offered to the subscribers the
+ * index yields for it.
+ * <p>
+ * A subscriber whose writes make no progress for the write idle timeout is disconnected,
+ * even under a policy that otherwise keeps it. Subscribers of the broadcast port can also be
+ * sent a {@link #KEEPALIVE_LINE} whenever no event was written to them for a while, so one
+ * whose peer went away is noticed by the write failing instead of being kept until the
+ * next event.
+ */
+class BroadcastHub {
+
+    static final int DEFAULT_QUEUE_CAPACITY = 256;
+    static final int HISTORY_CAPACITY = 1 << 14;
+    /** Resume point of a subscriber that only wants events published after it subscribed. */
+    static final long LIVE = -1;
+
+    static final String SUBSCRIBE_REQUEST = "SUBSCRIBE";
+    static final String RESUME_REQUEST = "RESUME ";
+    /** The line sent to an idle subscriber of the broadcast port; not an event, to be skipped. */
+    static final String KEEPALIVE_LINE = "KEEPALIVE";
+
+    private static final byte[] KEEPALIVE_BYTES =
+            (KEEPALIVE_LINE + System.lineSeparator()).getBytes(StandardCharsets.US_ASCII);
+    /** Queued in place of an event to make the writer send a keepalive. */
+    private static final StateEvent KEEPALIVE = new StateEvent(0, TCPServer.DEFAULT_DEVICE,
+            StateEvent.Type.SNAPSHOT, 0);
+    /** Queued in place of an event to make the writer pick up conflated events. */
+    private static final StateEvent WAKEUP = new StateEvent(0, TCPServer.DEFAULT_DEVICE,
+            StateEvent.Type.SNAPSHOT, 0);
+    private static final Comparator<StateEvent> BY_SEQUENCE = Comparator.comparingLong(StateEvent::getSequence);
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+    private volatile SubscriberIndex index = new SubscriberIndex();
+    private final AtomicLong droppedEvents = new AtomicLong();
+    private final LongAdder publishedEvents = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+    private volatile SlowConsumerPolicy slowConsumerPolicy = SlowConsumerPolicy.CONFLATE;
+    private volatile int queueCapacity = DEFAULT_QUEUE_CAPACITY;
+    private volatile SubscriptionMode subscriptionMode = SubscriptionMode.EVERY_EVENT;
+    private volatile long writeIdleTimeoutMillis = 0;
+    private volatile long keepaliveMillis = 0;
+    private final AtomicLong lastSequence = new AtomicLong();
+    private final AtomicReferenceArray<StateEvent> history = new AtomicReferenceArray<>(HISTORY_CAPACITY);
+    private volatile int deviceCount = 0;
+    private volatile IntToLongFunction stateSource = deviceId -> 0;
+
+    /**
+     * Registers a connected subscriber that receives events published from now on,
+     * and starts its writer.
+     *
+     * @param socket The subscriber's connection
+     * @throws IOException If the connection's output stream cannot be opened
+     */
+    void subscribe(Socket socket) throws IOException {
+        subscribe(socket, LIVE);
+    }
+
+    /**
+     * Registers a connected subscriber and starts its writer, which first sends the events
+     * published after the given sequence number.
+     *
+     * @param socket The subscriber's connection
+     * @param resumeAfter The last sequence number the subscriber has seen, or {@link #LIVE}
+     * @throws IOException If the connection's output stream cannot be opened
+     */
+    void subscribe(Socket socket, long resumeAfter) throws IOException {
+        subscribe(socket, resumeAfter, SubscriptionFilter.ALL);
+    }
+
+    /**
+     * Registers a connected subscriber that only receives the events its filter accepts,
+     * and starts its writer, which first sends the events published after the given
+     * sequence number.
+     *
+     * @param socket The subscriber's connection
+     * @param resumeAfter The last sequence number the subscriber has seen, or {@link #LIVE}
+     * @param filter The events the subscriber wants
+     * @throws IOException If the connection's output stream cannot be opened
+     */
+    void subscribe(Socket socket, long resumeAfter, SubscriptionFilter filter) throws IOException {
+        Subscriber subscriber = new Subscriber(new BufferedOutputStream(socket.getOutputStream()), socket,
+                String.valueOf(socket.getRemoteSocketAddress()), WireProtocol.TEXT, filter,
+                queueCapacity, subscriptionMode, keepaliveMillis);
+        register(subscriber, resumeAfter);
+    }
+
+    /**
+     * Registers a command connection that sent SUBSCRIBE and starts its writer. The
+     * connection receives the events published from now on, written to the given stream
+     * in the connection's protocol. If the subscriber has to be dropped, the connection
+     * is closed with it.
+     *
+     * @param events The stream that places events between the connection's responses
+     * @param protocol The protocol the connection speaks
+     * @param connection Closes the command connection
+     * @param name The client's address, for log messages
+     * @param filter The events the subscriber wants
+     * @return The subscriber, to be closed when the connection closes
+     */
+    Subscriber subscribe(EventOutputStream events, WireProtocol protocol, Closeable connection, String name,
+                         SubscriptionFilter filter) {
+        // Keepalives would be taken for responses, and the connection has its own timeouts
+        Subscriber subscriber = new Subscriber(events, connection, name, protocol, filter,
+                queueCapacity, subscriptionMode, 0);
+        register(subscriber, LIVE);
+        return subscriber;
+    }
+
+    private void register(Subscriber subscriber, long resumeAfter) {
+        synchronized (subscribers) {
+            subscribers.add(subscriber);
+            index = index.with(subscriber);
+        }
+        // Every event numbered after this point is offered to the subscriber, everything
+        // up to it is in the history, so the writer can join the two without gaps
+        subscriber.joinedAt = lastSequence.get();
+        subscriber.resumeAfter = resumeAfter == LIVE ? subscriber.joinedAt : resumeAfter;
+        subscriber.start();
+    }
+
+    /**
+     * Numbers an event, keeps it in the history and queues it for every subscriber
+     * without blocking.
+     *
+     * @param deviceId The device that changed
+     * @param type The kind of change
+     * @param state The state word the change produced, see {@link TVState}
+     */
+    void publish(int deviceId, StateEvent.Type type, long state) {
+        long sequence = lastSequence.incrementAndGet();
+        StateEvent event = new StateEvent(sequence, deviceId, type, state);
+        remember(event);
+        publishedEvents.increment();
+        index.offer(event);
+    }
+
+    private void unregister(Subscriber subscriber) {
+        synchronized (subscribers) {
+            if (subscribers.remove(subscriber)) {
+                index = index.without(subscriber);
+            }
+        }
+    }
+
+    /**
+     * Stores an event in its history slot, unless a publisher that overtook this one
+     * already stored a later event there.
+     */
+    private void remember(StateEvent event) {
+        int slot = (int) (event.getSequence() & (HISTORY_CAPACITY - 1));
+        while (true) {
+            StateEvent previous = history.get(slot);
+            if (previous != null && previous.getSequence() > event.getSequence()) {
+                return;
+            }
+            if (history.compareAndSet(slot, previous, event)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Gets the event with a sequence number from the history, waiting for it if its
+     * publisher has numbered it but not stored it yet.
+     *
+     * @param sequence A sequence number that has been published
+     * @return The event, or null if it has been evicted
+     */
+    private StateEvent recall(long sequence) {
+        int slot = (int) (sequence & (HISTORY_CAPACITY - 1));
+        while (true) {
+            StateEvent event = history.get(slot);
+            long found = event == null ? 0 : event.getSequence();
+            if (found == sequence) {
+                return event;
+            }
+            if (found > sequence) {
+                return null;
+            }
+            Thread.onSpinWait();
+        }
+    }
+
+    /**
+     * Gets the sequence number of the most recently published event.
+     *
+     * @return The last sequence number, or 0 if nothing was published yet
+     */
+    long getLastSequence() {
+        return lastSequence.get();
+    }
+
+    /**
+     * Sets where snapshots for resuming subscribers read the state of each device.
+     *
+     * @param deviceCount The number of devices, with IDs from 0
+     * @param stateSource Reads the current state word of a device
+     */
+    void setStateSource(int deviceCount, IntToLongFunction stateSource) {
+        this.stateSource = stateSource;
+        this.deviceCount = deviceCount;
+    }
+
+    /**
+     * Works out where a new subscriber's stream starts from the request it sent on connecting:
+     * {@code SUBSCRIBE} for events published from now on, or {@code RESUME n} for every event
+     * after sequence number n. Anything else counts as a request to start when it connected.
+     *
+     * @param request The line the subscriber sent, or null if it sent none
+     * @param connectedAt The last sequence number published when the subscriber connected
+     * @return The sequence number to resume after, or {@link #LIVE}
+     */
+    static long resumePoint(String request, long connectedAt) {
+        if (request == null) {
+            return connectedAt;
+        }
+        String[] words = request.trim().split("\\s+", 3);
+        if (words[0].equals(SUBSCRIBE_REQUEST)) {
+            return LIVE;
+        }
+        if (words[0].equals(RESUME_REQUEST.trim()) && words.length > 1) {
+            try {
+                long sequence = Long.parseLong(words[1]);
+                if (sequence >= 0) {
+                    return sequence;
+                }
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid broadcast resume request: " + request.trim());
+            }
+        }
+        return connectedAt;
+    }
+
+    /**
+     * Reads the filter a new subscriber appended to its request, as in
+     * {@code SUBSCRIBE type=POWER} or {@code RESUME 42 device=7}.
+     *
+     * @param request The line the subscriber sent, or null if it sent none
+     * @return The requested filter, or {@link SubscriptionFilter#ALL} if there is none
+     * @throws IllegalArgumentException If the filter is invalid or names a device not hosted here
+     */
+    SubscriptionFilter requestedFilter(String request) {
+        SubscriptionFilter filter = parseFilter(request);
+        if (filter.highestDevice() >= deviceCount) {
+            throw new IllegalArgumentException("No such device: " + filter.highestDevice());
+        }
+        return filter;
+    }
+
+    private static SubscriptionFilter parseFilter(String request) {
+        if (request == null) {
+            return SubscriptionFilter.ALL;
+        }
+        String[] words = request.trim().split("\\s+", 3);
+        if (words[0].equals(SUBSCRIBE_REQUEST)) {
+            return SubscriptionFilter.parse(request.trim().substring(SUBSCRIBE_REQUEST.length()));
+        }
+        if (words[0].equals(RESUME_REQUEST.trim()) && words.length > 2) {
+            return SubscriptionFilter.parse(words[2]);
+        }
+        return SubscriptionFilter.ALL;
+    }
+
+    void setSlowConsumerPolicy(SlowConsumerPolicy slowConsumerPolicy) {
+        this.slowConsumerPolicy = slowConsumerPolicy;
+    }
+
+    void setSubscriptionMode(SubscriptionMode subscriptionMode) {
+        this.subscriptionMode = subscriptionMode;
+    }
+
+    /**
+     * Sets how long a write to a subscriber may make no progress before it is disconnected.
+     * Applies to subscribers that connect afterwards.
+     *
+     * @param timeoutMillis The stall time, or 0 for no limit
+     */
+    void setWriteIdleTimeoutMillis(long timeoutMillis) {
+        this.writeIdleTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how long a subscriber of the broadcast port may go without anything written to it
+     * before it is sent a keepalive. Applies to subscribers that connect afterwards.
+     *
+     * @param intervalMillis The keepalive interval, or 0 to send no keepalives
+     */
+    void setKeepaliveMillis(long intervalMillis) {
+        this.keepaliveMillis = intervalMillis;
+    }
+
+    void setQueueCapacity(int queueCapacity) {
+        if (queueCapacity < 1) {
+            throw new IllegalArgumentException("Queue capacity must be positive: " + queueCapacity);
+        }
+        this.queueCapacity = queueCapacity;
+    }
+
+    int getSubscriberCount() {
+        return subscribers.size();
+    }
+
+    /**
+     * Gets the number of events discarded for slow subscribers since startup.
+     *
+     * @return The dropped or conflated event count
+     */
+    long getDroppedEvents() {
+        return droppedEvents.get();
+    }
+
+    long getPublishedEvents() {
+        return publishedEvents.sum();
+    }
+
+    /**
+     * Gets the number of subscribers disconnected because writing to them failed.
+     *
+     * @return The write failure count
+     */
+    long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    /**
+     * Disconnects every subscriber.
+     */
+    void close() {
+        for (Subscriber subscriber : subscribers) {
+            subscriber.close();
+        }
+    }
+
+    /**
+     * One subscriber connection with its outbound queue, or its latest-state slots.
+     * Under {@link SlowConsumerPolicy#CONFLATE} a subscriber with a full queue also gets a
+     * slot per device and event type, holding the newest event that did not fit.
+     */
+    final class Subscriber {
+
+        private final Closeable connection;
+        private final String name;
+        private final OutputStream out;
+        private final WireProtocol protocol;
+        private final SubscriptionFilter filter;
+        private final byte[] frame = new byte[BinaryProtocol.EVENT_FRAME_LENGTH];
+        private final BlockingQueue<StateEvent> queue;
+        private final Map<Integer, StateEvent> latest = new ConcurrentHashMap<>();
+        private final Map<Long, StateEvent> conflated = new ConcurrentHashMap<>();
+        private final AtomicInteger pendingEvents = new AtomicInteger();
+        private final AtomicBoolean wakeupPending = new AtomicBoolean();
+        private final Thread writer;
+        private final ConnectionWatchdog watchdog;
+        private long joinedAt;
+        private long resumeAfter;
+        private volatile boolean keepaliveDue = false;
+        private volatile boolean closed = false;
+
+        Subscriber(OutputStream out, Closeable connection, String name, WireProtocol protocol,
+                   SubscriptionFilter filter, int capacity, SubscriptionMode mode, long keepaliveMillis) {
+            this.connection = connection;
+            this.name = name;
+            this.out = out;
+            this.protocol = protocol;
+            this.filter = filter;
+            this.queue = mode == SubscriptionMode.EVERY_EVENT ? new ArrayBlockingQueue<>(capacity) : null;
+            Runnable task = mode == SubscriptionMode.EVERY_EVENT ? this::drain : this::drainLatest;
+            this.writer = Thread.ofVirtual().name("broadcast-writer-" + name).unstarted(task);
+            this.watchdog = new ConnectionWatchdog("to broadcast subscriber " + name, 0, writeIdleTimeoutMillis, 0,
+                    keepaliveMillis, this::onWriteStalled, this::requestKeepalive);
+        }
+
+        void start() {
+            writer.start();
+            watchdog.start();
+        }
+
+        /**
+         * Disconnects the subscriber once a write to it made no progress for too long.
+         * Closing the connection ends the write its writer is blocked in.
+         */
+        private void onWriteStalled() {
+            writeFailures.increment();
+            close();
+        }
+
+        /**
+         * Makes the writer send a keepalive, unless events are already on their way.
+         */
+        private void requestKeepalive() {
+            if (queue != null) {
+                queue.offer(KEEPALIVE);
+            } else {
+                keepaliveDue = true;
+                LockSupport.unpark(writer);
+            }
+        }
+
+        void offer(StateEvent event) {
+            if (queue == null) {
+                offerLatest(event);
+                return;
+            }
+            if (closed) {
+                return;
+            }
+            // Once a device's events of a type are being conflated, later ones must not overtake them
+            if (!conflated.isEmpty() && conflated.containsKey(conflationKey(event))) {
+                conflate(event);
+                return;
+            }
+            if (queue.offer(event)) {
+                return;
+            }
+            switch (slowConsumerPolicy) {
+                case DISCONNECT:
+                    System.err.println("Disconnecting slow broadcast subscriber " + name);
+                    close();
+                    break;
+                case CONFLATE:
+                    conflate(event);
+                    break;
+                default:
+                    droppedEvents.incrementAndGet();
+            }
+        }
+
+        private long conflationKey(StateEvent event) {
+            return (long) event.getDeviceId() << 2 | event.getType().ordinal();
+        }
+
+        /**
+         * Keeps an event that did not fit in the queue in the slot of its device and type,
+         * replacing an older one, then wakes the writer unless a wakeup is already on its way.
+         * Takes constant time, so publishing stays cheap however full the queue is.
+         */
+        private void conflate(StateEvent event) {
+            conflated.merge(conflationKey(event), event, (pending, arrived) -> {
+                droppedEvents.incrementAndGet();
+                return StateEvent.newer(pending, arrived);
+            });
+            if (wakeupPending.compareAndSet(false, true)) {
+                queue.offer(WAKEUP);
+            }
+        }
+
+        /**
+         * Moves the conflated events to a batch.
+         *
+         * @return true if any were moved, so the batch has to be put back in sequence order
+         */
+        private boolean takeConflated(List<StateEvent> batch) {
+            wakeupPending.set(false);
+            if (conflated.isEmpty()) {
+                return false;
+            }
+            for (Long key : conflated.keySet()) {
+                StateEvent event = conflated.remove(key);
+                if (event != null) {
+                    batch.add(event);
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Writes the events published between the subscriber's resume point and the moment
+         * it joined, from the history if it still holds all of them, otherwise as a snapshot.
+         * A resume point ahead of the last published event, as after a server restart, also
+         * gets a snapshot.
+         */
+        private void catchUp() throws IOException {
+            if (resumeAfter == joinedAt) {
+                return;
+            }
+            if (resumeAfter > joinedAt || joinedAt - resumeAfter > HISTORY_CAPACITY) {
+                writeSnapshot();
+                return;
+            }
+            for (long sequence = resumeAfter + 1; sequence <= joinedAt; sequence++) {
+                StateEvent event = recall(sequence);
+                if (event == null) {
+                    writeSnapshot();
+                    return;
+                }
+                if (filter.matches(event)) {
+                    send(event);
+                }
+            }
+            out.flush();
+        }
+
+        /**
+         * Writes the state of every device the filter accepts that has changed since startup,
+         * numbered with the sequence number the subscriber joined at. Devices left out are
+         * still OFF on channel 1.
+         */
+        private void writeSnapshot() throws IOException {
+            IntToLongFunction source = stateSource;
+            int count = deviceCount;
+            int[] ranges = filter.deviceRanges();
+            if (ranges == null) {
+                ranges = new int[] {0, count - 1};
+            }
+            for (int i = 0; i < ranges.length && ranges[i] < count; i += 2) {
+                int last = Math.min(ranges[i + 1], count - 1);
+                for (int deviceId = ranges[i]; deviceId <= last; deviceId++) {
+                    long state = source.applyAsLong(deviceId);
+                    if (TVState.version(state) > 0 && filter.matchesChannel(TVState.channel(state))) {
+                        send(new StateEvent(joinedAt, deviceId, StateEvent.Type.SNAPSHOT, state));
+                    }
+                }
+            }
+            out.flush();
+        }
+
+        /**
+         * Writes a live event unless it was already covered by catching up, or a keepalive.
+         */
+        private void write(StateEvent event) throws IOException {
+            if (event == KEEPALIVE) {
+                out.write(KEEPALIVE_BYTES);
+            } else if (event != WAKEUP && event.getSequence() > joinedAt) {
+                send(event);
+            }
+        }
+
+        /**
+         * Writes an event in the subscriber's protocol: the shared text line, or a binary
+         * event frame encoded into the subscriber's own buffer.
+         */
+        private void send(StateEvent event) throws IOException {
+            if (protocol == WireProtocol.BINARY) {
+                out.write(frame, 0, BinaryProtocol.encodeEvent(event, frame, 0));
+            } else {
+                out.write(event.getEncoded());
+            }
+        }
+
+        /**
+         * Writes queued events and the conflated ones until the connection fails or is closed.
+         * Everything queued at the time of a write goes out with a single flush, in sequence,
+         * though a conflated event can still follow a write of events published after it.
+         */
+        void drain() {
+            List<StateEvent> batch = new ArrayList<>();
+            try {
+                watchdog.onWriteStarted();
+                catchUp();
+                watchdog.onWriteFinished();
+                while (!closed) {
+                    // A wakeup that found the queue full is not queued, so never wait with events conflated
+                    StateEvent next = conflated.isEmpty() ? queue.take() : queue.poll();
+                    if (next != null) {
+                        batch.add(next);
+                    }
+                    watchdog.onWriteStarted();
+                    // Conflated events are taken first: anything queued after them is newer
+                    boolean conflatedTaken = takeConflated(batch);
+                    queue.drainTo(batch);
+                    if (conflatedTaken) {
+                        batch.sort(BY_SEQUENCE);
+                    }
+                    for (StateEvent event : batch) {
+                        write(event);
+                    }
+                    batch.clear();
+                    out.flush();
+                    watchdog.onWriteFinished();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    writeFailures.increment();
+                    System.err.println("Broadcast subscriber disconnected: " + e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close();
+            }
+        }
+
+        /**
+         * Replaces the device's pending event if the new one is more recent, then wakes
+         * the writer unless a wakeup is already on its way.
+         */
+        private void offerLatest(StateEvent event) {
+            if (closed) {
+                return;
+            }
+            latest.merge(event.deviceKey(), event, StateEvent::newer);
+            pendingEvents.incrementAndGet();
+            if (wakeupPending.compareAndSet(false, true)) {
+                LockSupport.unpark(writer);
+            }
+        }
+
+        /**
+         * Writes the latest state of every changed device until the connection fails or
+         * is closed. When more events arrived since the last write than there are devices
+         * to report, they were collapsed and each device is reported with a snapshot.
+         */
+        void drainLatest() {
+            List<StateEvent> batch = new ArrayList<>();
+            Map<Integer, Long> lastWrittenVersions = new HashMap<>();
+            try {
+                watchdog.onWriteStarted();
+                catchUp();
+                watchdog.onWriteFinished();
+                while (!closed) {
+                    wakeupPending.set(false);
+                    int arrived = pendingEvents.getAndSet(0);
+                    for (Integer deviceId : latest.keySet()) {
+                        StateEvent event = latest.remove(deviceId);
+                        if (event != null) {
+                            batch.add(event);
+                        }
+                    }
+                    if (batch.isEmpty() && keepaliveDue) {
+                        keepaliveDue = false;
+                        watchdog.onWriteStarted();
+                        write(KEEPALIVE);
+                        out.flush();
+                        watchdog.onWriteFinished();
+                        continue;
+                    }
+                    if (batch.isEmpty()) {
+                        LockSupport.park(this);
+                        continue;
+                    }
+                    watchdog.onWriteStarted();
+                    boolean collapsed = arrived > batch.size();
+                    if (collapsed) {
+                        droppedEvents.addAndGet(arrived - batch.size());
+                    }
+                    for (StateEvent event : batch) {
+                        Long lastWritten = lastWrittenVersions.get(event.deviceKey());
+                        if (event.getSequence() <= joinedAt
+                                || lastWritten != null && event.getVersion() <= lastWritten) {
+                            continue;
+                        }
+                        send(collapsed ? event.toSnapshot() : event);
+                        lastWrittenVersions.put(event.deviceKey(), event.getVersion());
+                    }
+                    batch.clear();
+                    out.flush();
+                    watchdog.onWriteFinished();
+                }
+            } catch (IOException e) {
+                if (!closed) {
+                    writeFailures.increment();
+                    System.err.println("Broadcast subscriber disconnected: " + e.getMessage());
+                }
+            } finally {
+                close();
+            }
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            watchdog.stop();
+            unregister(this);
+            writer.interrupt();
+            try {
+                connection.close();
+            } catch (IOException e) {
+                System.err.println("Error closing broadcast subscriber: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * An immutable index of the subscribers by the events they accept. Subscribers without
+     * a device or channel term sit in one list per event type, those with a channel term but
+     * no device term in one list per event type and channel. For those limited to some
+     * devices, the device IDs are cut into segments at every start and end of their ranges,
+     * and each segment lists the subscribers whose ranges cover it; an event is looked up by
+     * a binary search for its device's segment and checked against the rest of each filter.
+     * The index grows with the number of ranges, not with the number of devices they span.
+     * <p>
+     * A subscriber coming or going yields a new index that copies only the lists the
+     * subscriber is on and shares all others with the old one. Every list keeps the order
+     * in which its subscribers were added, so two segments with the same subscribers hold
+     * equal arrays: a segment that is split shares its list with the new one, and a boundary
+     * is dropped once the segments on both sides of it list the same subscribers.
+     */
+    private static final class SubscriberIndex {
+
+        private static final int CHANNEL_SLOTS = TVState.MAX_CHANNEL + 1;
+        private static final Subscriber[] NONE = new Subscriber[0];
+        private static final StateEvent.Type[] TYPES = StateEvent.Type.values();
+
+        private final Subscriber[][] byType;
+        private final Subscriber[][] byChannel;
+        private final int[] segmentStarts;
+        private final Subscriber[][] bySegment;
+
+        SubscriberIndex() {
+            this.byType = new Subscriber[TYPES.length][];
+            Arrays.fill(this.byType, NONE);
+            this.byChannel = new Subscriber[TYPES.length * CHANNEL_SLOTS][];
+            Arrays.fill(this.byChannel, NONE);
+            this.segmentStarts = new int[0];
+            this.bySegment = new Subscriber[0][];
+        }
+
+        private SubscriberIndex(Subscriber[][] byType, Subscriber[][] byChannel, int[] segmentStarts,
+                                Subscriber[][] bySegment) {
+            this.byType = byType;
+            this.byChannel = byChannel;
+            this.segmentStarts = segmentStarts;
+            this.bySegment = bySegment;
+        }
+
+        /**
+         * Gets an index that also holds a subscriber, which must not be in this one.
+         */
+        SubscriberIndex with(Subscriber subscriber) {
+            SubscriptionFilter filter = subscriber.filter;
+            int[] ranges = filter.deviceRanges();
+            if (ranges == null) {
+                return filter.limitsChannels()
+                        ? new SubscriberIndex(byType, added(byChannel, subscriber), segmentStarts, bySegment)
+                        : new SubscriberIndex(added(byType, subscriber), byChannel, segmentStarts, bySegment);
+            }
+            // Merge the subscriber's boundaries into the segment starts; a new segment starts
+            // out with the subscribers of the segment it was cut from
+            int[] starts = new int[segmentStarts.length + ranges.length];
+            Subscriber[][] segments = new Subscriber[starts.length][];
+            int count = 0;
+            int old = 0;
+            int boundary = 0;
+            while (old < segmentStarts.length || boundary < ranges.length) {
+                int next = boundaryAt(ranges, boundary);
+                if (boundary == ranges.length || (old < segmentStarts.length && segmentStarts[old] <= next)) {
+                    if (boundary < ranges.length && segmentStarts[old] == next) {
+                        boundary++;
+                    }
+                    starts[count] = segmentStarts[old];
+                    segments[count++] = bySegment[old++];
+                } else {
+                    starts[count] = next;
+                    segments[count++] = old == 0 ? NONE : bySegment[old - 1];
+                    boundary++;
+                }
+            }
+            starts = Arrays.copyOf(starts, count);
+            segments = Arrays.copyOf(segments, count);
+            for (int i = 0; i < count; i++) {
+                if (filter.matchesDevice(starts[i])) {
+                    segments[i] = append(segments[i], subscriber);
+                }
+            }
+            return new SubscriberIndex(byType, byChannel, starts, segments);
+        }
+
+        /**
+         * Gets an index without a subscriber, which must be in this one.
+         */
+        SubscriberIndex without(Subscriber subscriber) {
+            SubscriptionFilter filter = subscriber.filter;
+            int[] ranges = filter.deviceRanges();
+            if (ranges == null) {
+                return filter.limitsChannels()
+                        ? new SubscriberIndex(byType, removed(byChannel, subscriber), segmentStarts, bySegment)
+                        : new SubscriberIndex(removed(byType, subscriber), byChannel, segmentStarts, bySegment);
+            }
+            int[] starts = new int[segmentStarts.length];
+            Subscriber[][] segments = new Subscriber[starts.length][];
+            int count = 0;
+            for (int i = 0; i < segmentStarts.length; i++) {
+                Subscriber[] segment = filter.matchesDevice(segmentStarts[i])
+                        ? remove(bySegment[i], subscriber) : bySegment[i];
+                // Only the subscriber's own boundaries can have stopped separating different lists
+                Subscriber[] before = count == 0 ? NONE : segments[count - 1];
+                if (isBoundary(ranges, segmentStarts[i]) && Arrays.equals(segment, before)) {
+                    continue;
+                }
+                starts[count] = segmentStarts[i];
+                segments[count++] = segment;
+            }
+            return new SubscriberIndex(byType, byChannel, Arrays.copyOf(starts, count), Arrays.copyOf(segments, count));
+        }
+
+        /**
+         * Gets the lists of a subscriber without a device term with the subscriber added to
+         * each list of the events it accepts.
+         */
+        private static Subscriber[][] added(Subscriber[][] lists, Subscriber subscriber) {
+            Subscriber[][] result = lists.clone();
+            for (int i = 0; i < result.length; i++) {
+                if (accepts(lists, i, subscriber.filter)) {
+                    result[i] = append(result[i], subscriber);
+                }
+            }
+            return result;
+        }
+
+        private static Subscriber[][] removed(Subscriber[][] lists, Subscriber subscriber) {
+            Subscriber[][] result = lists.clone();
+            for (int i = 0; i < result.length; i++) {
+                if (accepts(lists, i, subscriber.filter)) {
+                    result[i] = remove(result[i], subscriber);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * Tells whether a filter accepts the events of a list, which is either one of the lists
+         * by type or one of the lists by type and channel.
+         */
+        private static boolean accepts(Subscriber[][] lists, int i, SubscriptionFilter filter) {
+            if (lists.length == TYPES.length) {
+                return filter.matchesType(TYPES[i]);
+            }
+            return filter.matchesType(TYPES[i / CHANNEL_SLOTS]) && filter.matchesChannel(i % CHANNEL_SLOTS);
+        }
+
+        private static Subscriber[] append(Subscriber[] list, Subscriber subscriber) {
+            Subscriber[] result = Arrays.copyOf(list, list.length + 1);
+            result[list.length] = subscriber;
+            return result;
+        }
+
+        private static Subscriber[] remove(Subscriber[] list, Subscriber subscriber) {
+            for (int i = 0; i < list.length; i++) {
+                if (list[i] == subscriber) {
+                    Subscriber[] result = Arrays.copyOf(list, list.length - 1);
+                    System.arraycopy(list, i + 1, result, i, list.length - 1 - i);
+                    return result;
+                }
+            }
+            return list;
+        }
+
+        /**
+         * Gets the n-th boundary of a filter's ranges: the first device of every range, and
+         * the device just after it.
+         */
+        private static int boundaryAt(int[] ranges, int n) {
+            if (n == ranges.length) {
+                return Integer.MAX_VALUE;
+            }
+            return n % 2 == 0 ? ranges[n] : ranges[n] + 1;
+        }
+
+        private static boolean isBoundary(int[] ranges, int device) {
+            for (int r = 0; r < ranges.length; r += 2) {
+                if (ranges[r] == device || ranges[r + 1] + 1 == device) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int slot(StateEvent.Type type, int channel) {
+            return type.ordinal() * CHANNEL_SLOTS + Math.max(0, Math.min(TVState.MAX_CHANNEL, channel));
+        }
+
+        /**
+         * Offers an event to every subscriber whose filter accepts it.
+         */
+        void offer(StateEvent event) {
+            for (Subscriber subscriber : byType[event.getType().ordinal()]) {
+                subscriber.offer(event);
+            }
+            for (Subscriber subscriber : byChannel[slot(event.getType(), TVState.channel(event.getState()))]) {
+                subscriber.offer(event);
+            }
+            if (segmentStarts.length == 0) {
+                return;
+            }
+            int segment = Arrays.binarySearch(segmentStarts, event.getDeviceId());
+            if (segment < 0) {
+                segment = -segment - 2;
+                if (segment < 0) {
+                    return;
+                }
+            }
+            for (Subscriber subscriber : bySegment[segment]) {
+                if (subscriber.filter.matches(event)) {
+                    subscriber.offer(event);
+                }
+            }
+        }
+    }
+}
@@ -1,15 +1,19 @@
 package org.socket;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 public class ClientHandler implements Runnable {
 
+    private static final int FLUSH_THRESHOLD = 8192;
+
     private Socket clientSocket;
     private TCPServer server;
+    private final Object writeLock = new Object();
 
     public ClientHandler(Socket clientSocket, TCPServer server){
         this.clientSocket = clientSocket;
@@ -27,33 +31,79 @@ public class ClientHandler implements Runnable {
 
     @Override
     public void run() {
+        CommandSession session = null;
+        String clientName = String.valueOf(clientSocket.getRemoteSocketAddress());
+        // Closing the socket from the timer thread ends a read or write blocked on it
+        ConnectionWatchdog watchdog = server.watchConnection(clientName, this::closeSocket);
         try {
             server.registerClient(this);
-            BufferedReader in = new BufferedReader(new InputStreamReader(clientSocket.getInputStream()));
-            PrintWriter out = new PrintWriter(clientSocket.getOutputStream(), true);
-
-            String inputLine;
-            while((inputLine = in.readLine()) != null) {
-                int commandCode = Integer.parseInt(inputLine.trim());
-                Commands command = Commands.fromIntValue(commandCode);
-                String response = server.executeCommand(command);
+            InputStream in = clientSocket.getInputStream();
+            OutputStream out = clientSocket.getOutputStream();
+            session = new CommandSession(server, new EventOutputStream() {
+                @Override
+                protected void deliver(byte[] batch, int length) throws IOException {
+                    // Events of a subscribed client go straight to the socket, between two responses
+                    synchronized (writeLock) {
+                        writeWatched(out, batch, length, watchdog);
+                    }
+                }
+            }, clientSocket, clientName);
+            byte[] buffer = new byte[512];
 
-                out.println(response);
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                watchdog.onRead();
+                for (int i = 0; i < read && !session.isExitRequested(); i++) {
+                    session.receive(buffer[i]);
+                }
 
-                if (command == Commands.EXIT){
-                    break;
+                // Hold responses back while more pipelined requests are already buffered,
+                // so a batch of requests is answered with a single write.
+                ByteBuffer output = session.output();
+                if (output.position() > 0 && (in.available() == 0 || output.position() >= FLUSH_THRESHOLD
+                        || session.isExitRequested())) {
+                    synchronized (writeLock) {
+                        writeWatched(out, output.array(), output.position(), watchdog);
+                    }
+                    output.clear();
                 }
 
+                if (session.isExitRequested()){
+                    return;
+                }
             }
         } catch (IOException e){
-            System.err.println("Error handling client connection" + e.getMessage());
+            if (!watchdog.isExpired()) {
+                System.err.println("Error handling client connection" + e.getMessage());
+            }
         } finally {
-            server.unregisterClient(this);
-            try {
-                clientSocket.close();
-            } catch (IOException e){
-                System.err.println("Error closing client socket: " + e.getMessage());
+            watchdog.stop();
+            if (session != null) {
+                session.close();
             }
+            server.unregisterClient(this);
+            closeSocket();
+        }
+    }
+
+    /**
+     * Writes to the client, letting the watchdog see how long the write blocks.
+     */
+    private static void writeWatched(OutputStream out, byte[] bytes, int length, ConnectionWatchdog watchdog)
+            throws IOException {
+        watchdog.onWriteStarted();
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            watchdog.onWriteFinished();
+        }
+    }
+
+    private void closeSocket() {
+        try {
+            clientSocket.close();
+        } catch (IOException e){
+            System.err.println("Error closing client socket: " + e.getMessage());
         }
     }
 }
@@ -0,0 +1,291 @@
+package org.socket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Allocation-free encoding and decoding of the text command protocol.
+ * Requests are parsed byte by byte straight from the network buffer, and every
+ * possible response is rendered once up front, keyed by command and resulting
+ * TV state, both as a String and as pre-encoded line bytes.
+ */
+public final class CommandCodec {
+
+    /** Returned by {@link LineDecoder#accept(byte)} while a line is incomplete. */
+    public static final int NEED_MORE = -1;
+    /** Returned by {@link LineDecoder#accept(byte)} for a line that is not a command code. */
+    public static final int INVALID = -2;
+
+    private static final String UNKNOWN_COMMAND_TEXT = "Unknown command. Try 'HELP'";
+    private static final byte[] UNKNOWN_COMMAND = encode(UNKNOWN_COMMAND_TEXT);
+    private static final String UNKNOWN_DEVICE_TEXT = "Unknown device";
+    private static final byte[] UNKNOWN_DEVICE = encode(UNKNOWN_DEVICE_TEXT);
+    private static final String STATE_TEXT_PREFIX = "TV_STATE: ";
+    private static final Pattern STATE_TEXT =
+            Pattern.compile("TV_STATE: (ON|OFF), Channel: (\\d+), Version: (\\d+)");
+
+    private static final int STATES_PER_COMMAND = 2 * 2 * TVState.MAX_CHANNEL;
+    private static final String[] RESPONSE_TEXT = new String[Commands.values().length * STATES_PER_COMMAND];
+    private static final byte[][] RESPONSE_BYTES = new byte[RESPONSE_TEXT.length][];
+
+    static {
+        for (Commands command : Commands.values()) {
+            for (int slot = 0; slot < STATES_PER_COMMAND; slot++) {
+                boolean changed = slot >= 2 * TVState.MAX_CHANNEL;
+                boolean on = (slot / TVState.MAX_CHANNEL) % 2 == 1;
+                int channel = (slot % TVState.MAX_CHANNEL) + 1;
+                String text = describe(command, changed, on, channel);
+                int index = command.ordinal() * STATES_PER_COMMAND + slot;
+                RESPONSE_TEXT[index] = text;
+                RESPONSE_BYTES[index] = encode(text);
+            }
+        }
+    }
+
+    private CommandCodec() {
+    }
+
+    /**
+     * Gets the response text for a command that produced the given state.
+     *
+     * @param command The executed command
+     * @param state The state word returned by the command
+     * @return The shared response string
+     */
+    public static String responseText(Commands command, long state) {
+        return RESPONSE_TEXT[index(command, state)];
+    }
+
+    /**
+     * Gets the encoded response line for a command that produced the given state.
+     * The returned array is shared and must not be modified.
+     *
+     * @param command The executed command
+     * @param state The state word returned by the command
+     * @return The response bytes including the line separator
+     */
+    public static byte[] responseBytes(Commands command, long state) {
+        return RESPONSE_BYTES[index(command, state)];
+    }
+
+    /**
+     * Renders the response to GET_STATE. Unlike the other responses it carries the state
+     * version, so it cannot come from the precomputed table.
+     *
+     * @param state The device's state word
+     * @return A line such as "TV_STATE: ON, Channel: 3, Version: 7"
+     */
+    public static String stateText(long state) {
+        return STATE_TEXT_PREFIX + (TVState.isOn(state) ? "ON" : "OFF") + ", Channel: " + TVState.channel(state)
+                + ", Version: " + TVState.version(state);
+    }
+
+    /**
+     * Parses a response to GET_STATE.
+     *
+     * @param response The response line
+     * @return The state word it reports, or -1 if the line is not a GET_STATE response
+     */
+    public static long parseStateText(String response) {
+        Matcher matcher = STATE_TEXT.matcher(response);
+        if (!matcher.matches()) {
+            return -1;
+        }
+        try {
+            int channel = Integer.parseInt(matcher.group(2));
+            if (channel < TVState.MIN_CHANNEL || channel > TVState.MAX_CHANNEL) {
+                return -1;
+            }
+            return TVState.pack(matcher.group(1).equals("ON"), channel, Long.parseLong(matcher.group(3)));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Gets the encoded response line for an unrecognised request.
+     * The returned array is shared and must not be modified.
+     *
+     * @return The response bytes including the line separator
+     */
+    public static byte[] unknownCommand() {
+        return UNKNOWN_COMMAND;
+    }
+
+    /**
+     * Gets the response text for a request addressed to a device the server does not host.
+     *
+     * @return The response text
+     */
+    public static String unknownDeviceText() {
+        return UNKNOWN_DEVICE_TEXT;
+    }
+
+    /**
+     * Gets the encoded response line for a request addressed to a device the server
+     * does not host. The returned array is shared and must not be modified.
+     *
+     * @return The response bytes including the line separator
+     */
+    public static byte[] unknownDevice() {
+        return UNKNOWN_DEVICE;
+    }
+
+    private static int index(Commands command, long state) {
+        int channel = Math.max(TVState.MIN_CHANNEL, Math.min(TVState.MAX_CHANNEL, TVState.channel(state)));
+        int slot = (TVState.changed(state) ? 2 * TVState.MAX_CHANNEL : 0)
+                + (TVState.isOn(state) ? TVState.MAX_CHANNEL : 0)
+                + channel - 1;
+        return command.ordinal() * STATES_PER_COMMAND + slot;
+    }
+
+    private static String describe(Commands command, boolean changed, boolean on, int channel) {
+        switch (command) {
+            case HELP:
+                return "Available commands: 'HELP(" + Commands.HELP.getCode() + ")', " +
+                        "'TURN ON(" + Commands.TURN_ON.getCode() + ")', " +
+                        "'TURN OFF(" + Commands.TURN_OFF.getCode() + ")', " +
+                        "'STATUS(" + Commands.STATUS.getCode() + ")', " +
+                        "'GET ACTIVE CHANNEL(" + Commands.GET_CHANNEL.getCode() + ")', " +
+                        "'CHANNEL_1(" + Commands.CHANNEL_1.getCode() + ")', " +
+                        "'CHANNEL_2(" + Commands.CHANNEL_2.getCode() + ")', " +
+                        "'CHANNEL_3(" + Commands.CHANNEL_3.getCode() + ")', " +
+                        "'CHANNEL_4(" + Commands.CHANNEL_4.getCode() + ")', " +
+                        "'CHANNEL_5(" + Commands.CHANNEL_5.getCode() + ")', " +
+                        "'STATS(" + Commands.STATS.getCode() + ")', " +
+                        "'SUBSCRIBE(" + Commands.SUBSCRIBE.getCode() + ")', " +
+                        "'GET STATE(" + Commands.GET_STATE.getCode() + ")', " +
+                        "'EXIT(" + Commands.EXIT.getCode() + ")'";
+            case TURN_ON:
+                return changed ? "TV turned ON" : "TV is already ON";
+            case TURN_OFF:
+                return changed ? "TV turned OFF" : "TV is already OFF";
+            case TURN_ON_OR_OFF:
+                return "TV turned " + (on ? "ON" : "OFF");
+            case STATUS:
+                return "TV is " + (on ? "ON" : "OFF");
+            case GET_CHANNEL:
+                return "Active channel is " + channel;
+            case STATS:
+                return "STATS unavailable";
+            case SUBSCRIBE:
+                return "Subscribed to state events";
+            case GET_STATE:
+                return "TV_STATE unavailable";
+            case EXIT:
+                return "Exiting. Goodbye!";
+            default:
+                break;
+        }
+        if (!on) {
+            return "TV is OFF. Cannot change channel.";
+        }
+        switch (command) {
+            case CHANNEL_UP:
+                return "Channel increased to " + channel; //Wrap around after channel 5
+            case CHANNEL_DOWN:
+                return "Channel decreased to " + channel;
+            case CHANNEL_1:
+                return "Switched to Channel 1: NRK";
+            case CHANNEL_2:
+                return "Switched to Channel 2: National Geographic";
+            case CHANNEL_3:
+                return "Switched to Channel 3: Discovery Channel";
+            case CHANNEL_4:
+                return "Switched to Channel 4: HBO";
+            case CHANNEL_5:
+                return "Switched to Channel 5: TV2";
+            default:
+                return UNKNOWN_COMMAND_TEXT;
+        }
+    }
+
+    private static byte[] encode(String text) {
+        return (text + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Incremental parser for newline-terminated decimal command codes.
+     * Surrounding whitespace and a trailing carriage return are ignored,
+     * mirroring {@code Integer.parseInt(line.trim())}. A code may be prefixed with a
+     * device ID and a colon, as in {@code 42:6}, to address one device of a server
+     * hosting several.
+     */
+    public static final class LineDecoder {
+
+        private static final int MAX_CODE = 9999;
+        private static final int MAX_DEVICE_ID = 99_999_999;
+
+        private int value = 0;
+        private int digits = 0;
+        private int deviceId = -1;
+        private int lastDeviceId = TCPServer.DEFAULT_DEVICE;
+        private boolean lastDeviceAddressed = false;
+        private boolean invalid = false;
+        private boolean trailingSpace = false;
+
+        /**
+         * Feeds one byte of input.
+         *
+         * @param b The next input byte
+         * @return The command code once a full line is read, {@link #NEED_MORE} while
+         *         the line is incomplete, or {@link #INVALID} for a malformed line
+         */
+        public int accept(byte b) {
+            if (b == '\n') {
+                int result = (invalid || digits == 0) ? INVALID : value;
+                lastDeviceId = deviceId < 0 ? TCPServer.DEFAULT_DEVICE : deviceId;
+                lastDeviceAddressed = deviceId >= 0;
+                reset();
+                return result;
+            }
+            if (b >= '0' && b <= '9') {
+                if (trailingSpace) {
+                    invalid = true;
+                }
+                value = value * 10 + (b - '0');
+                digits++;
+                if (value > (deviceId < 0 ? MAX_DEVICE_ID : MAX_CODE)) {
+                    invalid = true;
+                    value = 0;
+                }
+            } else if (b == ':' && deviceId < 0 && digits > 0 && !trailingSpace) {
+                deviceId = value;
+                value = 0;
+                digits = 0;
+            } else if (b == ' ' || b == '\t' || b == '\r') {
+                trailingSpace = digits > 0;
+            } else {
+                invalid = true;
+            }
+            return NEED_MORE;
+        }
+
+        /**
+         * Gets the device the last complete line was addressed to.
+         *
+         * @return The device ID, or {@link TCPServer#DEFAULT_DEVICE} if the line had no prefix
+         */
+        public int getDeviceId() {
+            return lastDeviceId;
+        }
+
+        /**
+         * Tells whether the last complete line had a device prefix.
+         *
+         * @return true if the line named its device, even the default one
+         */
+        public boolean isDeviceAddressed() {
+            return lastDeviceAddressed;
+        }
+
+        private void reset() {
+            value = 0;
+            digits = 0;
+            deviceId = -1;
+            invalid = false;
+            trailingSpace = false;
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.socket;
+
+import java.io.Closeable;
+import java.nio.ByteBuffer;
+
+/**
+ * Protocol state of a single command connection, shared by {@link ClientHandler}
+ * and the NIO engine. The session detects the {@link WireProtocol} from the first
+ * byte, decodes requests, executes them on the server and appends the encoded
+ * responses to its output buffer for the transport to write.
+ * <p>
+ * A client that sends SUBSCRIBE also receives state events on the connection. They
+ * are written to the transport's {@link EventOutputStream}, which places them between
+ * responses. A SUBSCRIBE addressed to a device subscribes to that device's events only.
+ */
+class CommandSession {
+
+    private final TCPServer server;
+    private final EventOutputStream events;
+    private final Closeable connection;
+    private final String clientName;
+    private final CommandCodec.LineDecoder lineDecoder = new CommandCodec.LineDecoder();
+    private final BinaryProtocol.FrameDecoder frameDecoder = new BinaryProtocol.FrameDecoder();
+    private WireProtocol protocol;
+    private ByteBuffer output = ByteBuffer.allocate(4096);
+    private boolean exitRequested = false;
+    private BroadcastHub.Subscriber subscriber;
+
+    /**
+     * Creates the session of a new connection.
+     *
+     * @param server The server whose commands are executed
+     * @param events Where the transport takes state events from once the client subscribed
+     * @param connection Closes the connection, used if the client cannot keep up with events
+     * @param clientName The client's address, for log messages
+     */
+    CommandSession(TCPServer server, EventOutputStream events, Closeable connection, String clientName) {
+        this.server = server;
+        this.events = events;
+        this.connection = connection;
+        this.clientName = clientName;
+    }
+
+    /**
+     * Feeds one byte received from the client.
+     *
+     * @param b The received byte
+     * @return true if a response was appended to the output buffer
+     */
+    boolean receive(byte b) {
+        if (protocol == null) {
+            protocol = b == BinaryProtocol.MAGIC ? WireProtocol.BINARY : WireProtocol.TEXT;
+        }
+        if (protocol == WireProtocol.BINARY) {
+            return receiveBinary(b);
+        }
+        int commandCode = lineDecoder.accept(b);
+        if (commandCode == CommandCodec.NEED_MORE) {
+            return false;
+        }
+        Commands command = Commands.lookup(commandCode);
+        if (command == null) {
+            server.metrics().recordUnknownCommand();
+        }
+        byte[] response = command == null ? CommandCodec.unknownCommand()
+                : server.executeCommandEncoded(lineDecoder.getDeviceId(), command);
+        ensureWritable(response.length);
+        output.put(response);
+        if (command == Commands.SUBSCRIBE && server.hasDevice(lineDecoder.getDeviceId())) {
+            subscribe(lineDecoder.isDeviceAddressed() ? lineDecoder.getDeviceId() : -1);
+        }
+        exitRequested = command == Commands.EXIT;
+        return true;
+    }
+
+    private boolean receiveBinary(byte b) {
+        int opcode = frameDecoder.accept(b);
+        if (opcode == CommandCodec.NEED_MORE) {
+            return false;
+        }
+        ensureWritable(2);
+        if (opcode == BinaryProtocol.HELLO) {
+            output.put(BinaryProtocol.MAGIC).put(BinaryProtocol.VERSION);
+            return true;
+        }
+        int deviceId = frameDecoder.getDeviceId();
+        if (!server.hasDevice(deviceId)) {
+            output.put((byte) BinaryProtocol.STATUS_UNKNOWN_DEVICE).put((byte) 0);
+            return true;
+        }
+        Commands command = Commands.lookup(opcode);
+        if (command == null) {
+            server.metrics().recordUnknownCommand();
+            output.put((byte) BinaryProtocol.STATUS_UNKNOWN_COMMAND)
+                    .put((byte) BinaryProtocol.packState(server.getState(deviceId)));
+            return true;
+        }
+        long state = server.applyCommand(deviceId, command);
+        output.put((byte) BinaryProtocol.status(command, state))
+                .put((byte) BinaryProtocol.packState(state));
+        if (command == Commands.SUBSCRIBE) {
+            subscribe(frameDecoder.isDeviceAddressed() ? deviceId : -1);
+        }
+        exitRequested = command == Commands.EXIT;
+        return true;
+    }
+
+    /**
+     * Subscribes the connection to state events from now on. Subscribing again has no effect.
+     *
+     * @param deviceId The only device to report, or -1 for all devices
+     */
+    private void subscribe(int deviceId) {
+        if (subscriber == null) {
+            SubscriptionFilter filter = deviceId < 0 ? SubscriptionFilter.ALL : SubscriptionFilter.forDevice(deviceId);
+            subscriber = server.subscribeConnection(events, protocol, connection, clientName, filter);
+        }
+    }
+
+    /**
+     * Appends a batch of whole state events to the output buffer, for transports that
+     * interleave events with responses in the buffer.
+     *
+     * @param batch The encoded events
+     */
+    void append(byte[] batch) {
+        ensureWritable(batch.length);
+        output.put(batch);
+    }
+
+    /**
+     * Ends the connection's event subscription, if any. Called by the transport once the
+     * connection is closed.
+     */
+    void close() {
+        if (subscriber != null) {
+            subscriber.close();
+        }
+    }
+
+    private void ensureWritable(int length) {
+        if (output.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(output.capacity() * 2, output.position() + length));
+            output.flip();
+            larger.put(output);
+            output = larger;
+        }
+    }
+
+    /**
+     * Gets the buffer holding responses not yet written, in write mode.
+     * The transport flips it, writes it and compacts or clears it again.
+     *
+     * @return The output buffer
+     */
+    ByteBuffer output() {
+        return output;
+    }
+
+    /**
+     * Tells whether the client sent EXIT, after which no further input is processed.
+     *
+     * @return true once EXIT has been answered
+     */
+    boolean isExitRequested() {
+        return exitRequested;
+    }
+
+    /**
+     * Gets the protocol the client speaks, once its first byte has been seen.
+     *
+     * @return The detected protocol, or null before any input
+     */
+    WireProtocol getProtocol() {
+        return protocol;
+    }
+}
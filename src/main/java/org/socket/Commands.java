@@ -18,8 +18,13 @@ public enum Commands {
     CHANNEL_3(11),
     CHANNEL_4(12),
     CHANNEL_5(13),
+    STATS(14),
+    SUBSCRIBE(15),
+    GET_STATE(16),
     EXIT(0);
 
+    private static final Commands[] BY_CODE = indexByCode();
+
     private final int code;
 
     /**
@@ -59,11 +64,35 @@ public enum Commands {
      * @throws IllegalArgumentException If no command matches the provided code
      */
     public static Commands fromIntValue(int intValue) {
-        for (Commands command : Commands.values()) {
-            if (command.getCode() == intValue) {
-                return command;
-            }
+        Commands command = lookup(intValue);
+        if (command == null) {
+            throw new IllegalArgumentException("Invalid command code: " + intValue);
+        }
+        return command;
+    }
+
+    private static Commands[] indexByCode() {
+        int maxCode = 0;
+        for (Commands command : values()) {
+            maxCode = Math.max(maxCode, command.code);
+        }
+        Commands[] byCode = new Commands[maxCode + 1];
+        for (Commands command : values()) {
+            byCode[command.code] = command;
+        }
+        return byCode;
+    }
+
+    /**
+     * Finds a command by its numeric code without throwing.
+     *
+     * @param intValue The numeric code to look up
+     * @return The command associated with the numeric code, or null if there is none
+     */
+    public static Commands lookup(int intValue) {
+        if (intValue < 0 || intValue >= BY_CODE.length) {
+            return null;
         }
-        throw new IllegalArgumentException("Invalid command code: " + intValue);
+        return BY_CODE[intValue];
     }
 }
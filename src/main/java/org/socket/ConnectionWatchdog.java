@@ -0,0 +1,190 @@
+package org.socket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces the timeouts of one connection: how long it may go without receiving anything,
+ * how long a write to it may make no progress, and how long it may stay open at all. It
+ * can also ask for a keepalive when nothing has been written for a while, so a peer that
+ * vanished is noticed by the next write failing.
+ * <p>
+ * Reads and writes only record the time in a field. Nothing is scheduled per read or write:
+ * each watchdog keeps a single timeout in a shared {@link HashedTimerWheel}, due at the
+ * earliest moment one of its limits could be reached. When it fires, the watchdog checks
+ * the recorded times and either expires the connection or sets the timeout again for the
+ * next possible moment, so a connection is checked about once per limit however busy it is.
+ */
+final class ConnectionWatchdog {
+
+    private static final HashedTimerWheel WHEEL = new HashedTimerWheel("connection-timer", 100, 512);
+
+    private final String name;
+    private final long readIdleNanos;
+    private final long writeIdleNanos;
+    private final long sessionNanos;
+    private final long keepaliveNanos;
+    private final Runnable onExpired;
+    private final Runnable keepalive;
+    private final long openedAt = System.nanoTime();
+    private volatile long lastReadAt = openedAt;
+    private volatile long lastWriteAt = openedAt;
+    private volatile long writeProgressAt = openedAt;
+    private volatile boolean writing = false;
+    private volatile boolean stopped = false;
+    private volatile boolean expired = false;
+    private volatile HashedTimerWheel.Timeout timeout;
+
+    /**
+     * Creates a watchdog. Limits of zero or less are not enforced.
+     *
+     * @param name The connection's name, for log messages
+     * @param readIdleMillis How long the connection may go without receiving anything
+     * @param writeIdleMillis How long a pending write may make no progress
+     * @param sessionMillis How long the connection may stay open
+     * @param onExpired Closes the connection once a limit is reached; must not block
+     */
+    ConnectionWatchdog(String name, long readIdleMillis, long writeIdleMillis, long sessionMillis,
+                       Runnable onExpired) {
+        this(name, readIdleMillis, writeIdleMillis, sessionMillis, 0, onExpired, () -> { });
+    }
+
+    /**
+     * Creates a watchdog that also asks for keepalives. Limits of zero or less are not enforced.
+     *
+     * @param name The connection's name, for log messages
+     * @param readIdleMillis How long the connection may go without receiving anything
+     * @param writeIdleMillis How long a pending write may make no progress
+     * @param sessionMillis How long the connection may stay open
+     * @param keepaliveMillis How long the connection may go without anything written to it
+     *                        before a keepalive is requested
+     * @param onExpired Closes the connection once a limit is reached; must not block
+     * @param keepalive Arranges for a keepalive to be written; must not block
+     */
+    ConnectionWatchdog(String name, long readIdleMillis, long writeIdleMillis, long sessionMillis,
+                       long keepaliveMillis, Runnable onExpired, Runnable keepalive) {
+        this.name = name;
+        this.readIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, readIdleMillis));
+        this.writeIdleNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, writeIdleMillis));
+        this.sessionNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, sessionMillis));
+        this.keepaliveNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, keepaliveMillis));
+        this.onExpired = onExpired;
+        this.keepalive = keepalive;
+    }
+
+    /**
+     * Starts watching the connection, unless no limit is set.
+     */
+    void start() {
+        long first = nextCheck(readIdleNanos, writeIdleNanos, sessionNanos, keepaliveNanos);
+        if (first != Long.MAX_VALUE) {
+            timeout = WHEEL.schedule(this::check, first);
+        }
+    }
+
+    /**
+     * Records that the connection received data.
+     */
+    void onRead() {
+        lastReadAt = System.nanoTime();
+    }
+
+    /**
+     * Records that a write is pending. Also called whenever a pending write makes progress.
+     */
+    void onWriteStarted() {
+        writeProgressAt = System.nanoTime();
+        writing = true;
+    }
+
+    /**
+     * Records that everything written so far has gone out.
+     */
+    void onWriteFinished() {
+        writing = false;
+        lastWriteAt = System.nanoTime();
+    }
+
+    /**
+     * Tells whether a write is pending.
+     *
+     * @return true between {@link #onWriteStarted()} and {@link #onWriteFinished()}
+     */
+    boolean isWriting() {
+        return writing;
+    }
+
+    /**
+     * Tells whether the watchdog closed the connection.
+     *
+     * @return true if a limit was reached
+     */
+    boolean isExpired() {
+        return expired;
+    }
+
+    /**
+     * Stops watching the connection once it is closed.
+     */
+    void stop() {
+        stopped = true;
+        HashedTimerWheel.Timeout current = timeout;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Runs on the timer thread when the earliest limit may have been reached.
+     */
+    private void check() {
+        if (stopped) {
+            return;
+        }
+        long now = System.nanoTime();
+        long sessionLeft = sessionNanos > 0 ? openedAt + sessionNanos - now : Long.MAX_VALUE;
+        long readLeft = readIdleNanos > 0 ? lastReadAt + readIdleNanos - now : Long.MAX_VALUE;
+        long writeLeft = writeIdleNanos > 0 && writing ? writeProgressAt + writeIdleNanos - now : writeIdleNanos;
+        String reason = null;
+        if (sessionLeft <= 0) {
+            reason = "session limit reached";
+        } else if (readLeft <= 0) {
+            reason = "nothing received for " + TimeUnit.NANOSECONDS.toMillis(readIdleNanos) + " ms";
+        } else if (writeIdleNanos > 0 && writeLeft <= 0) {
+            reason = "write stalled for " + TimeUnit.NANOSECONDS.toMillis(writeIdleNanos) + " ms";
+        }
+        if (reason != null) {
+            expired = true;
+            stopped = true;
+            System.err.println("Closing connection " + name + ": " + reason);
+            onExpired.run();
+            return;
+        }
+        long keepaliveLeft = keepaliveNanos;
+        if (keepaliveNanos > 0 && !writing) {
+            keepaliveLeft = lastWriteAt + keepaliveNanos - now;
+            if (keepaliveLeft <= 0) {
+                keepalive.run();
+                keepaliveLeft = keepaliveNanos;
+            }
+        }
+        timeout = WHEEL.schedule(this::check, nextCheck(readLeft, writeLeft, sessionLeft, keepaliveLeft));
+        if (stopped) {
+            timeout.cancel();
+        }
+    }
+
+    /**
+     * Gets the smallest of the given delays that applies.
+     *
+     * @return The delay, or {@link Long#MAX_VALUE} if none applies
+     */
+    private static long nextCheck(long readLeft, long writeLeft, long sessionLeft, long keepaliveLeft) {
+        long next = Long.MAX_VALUE;
+        for (long left : new long[] {readLeft, writeLeft, sessionLeft, keepaliveLeft}) {
+            if (left > 0 && left < next) {
+                next = left;
+            }
+        }
+        return next;
+    }
+}
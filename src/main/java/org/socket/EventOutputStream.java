@@ -0,0 +1,62 @@
+package org.socket;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Collects the state events a {@link BroadcastHub} writes for a command connection that
+ * subscribed with SUBSCRIBE, and hands every flushed batch to the connection's transport
+ * in one piece. Batches only ever contain whole events, so the transport can put them
+ * between two responses without splitting either.
+ */
+abstract class EventOutputStream extends OutputStream {
+
+    private byte[] buffer = new byte[512];
+    private int count = 0;
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, buffer, count, length);
+        count += length;
+    }
+
+    /**
+     * Delivers the events written since the last flush, if any.
+     *
+     * @throws IOException If the connection is closed or delivering fails
+     */
+    @Override
+    public void flush() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        int length = count;
+        count = 0;
+        deliver(buffer, length);
+    }
+
+    /**
+     * Hands a batch of whole events to the transport. May block while the transport
+     * has too much output pending, which holds up the subscriber's writer and lets the
+     * hub's slow consumer policy take effect.
+     *
+     * @param batch The buffer holding the batch, reused once this returns
+     * @param length The number of bytes in the batch
+     * @throws IOException If the connection is closed or writing fails
+     */
+    protected abstract void deliver(byte[] batch, int length) throws IOException;
+
+    private void ensureCapacity(int length) {
+        if (buffer.length - count < length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+    }
+}
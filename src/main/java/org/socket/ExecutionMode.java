@@ -0,0 +1,30 @@
+package org.socket;
+
+/**
+ * Selects how a {@link TCPServer} serves its command connections.
+ */
+public enum ExecutionMode {
+    /**
+     * Blocking accept, each connection is handled by a {@link ClientHandler}
+     * on a fixed pool of platform threads.
+     */
+    PLATFORM_POOL,
+
+    /**
+     * Blocking accept, each connection is handled by a {@link ClientHandler}
+     * on its own virtual thread, with no cap on concurrent connections.
+     */
+    VIRTUAL_THREAD,
+
+    /**
+     * Like {@link #VIRTUAL_THREAD}, but a semaphore limits the number of
+     * connections served at once. Further clients wait in the accept backlog.
+     */
+    BOUNDED_VIRTUAL,
+
+    /**
+     * Non-blocking accept and I/O, a few selector event loops multiplex
+     * all command connections.
+     */
+    NIO_EVENT_LOOP
+}
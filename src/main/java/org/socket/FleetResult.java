@@ -0,0 +1,84 @@
+package org.socket;
+
+/**
+ * The outcome of one TV's part in a fleet-wide command sent through {@link TVManager}.
+ */
+public class FleetResult {
+
+    /**
+     * How a single TV's command ended.
+     */
+    public enum Outcome {
+        /** The TV answered in time. */
+        OK,
+        /** The command could not be sent or the connection failed. */
+        FAILED,
+        /** The TV did not answer within the per-TV timeout or the overall deadline. */
+        TIMED_OUT
+    }
+
+    private final String tvName;
+    private final Outcome outcome;
+    private final String response;
+    private final long latencyNanos;
+
+    /**
+     * Constructs a result for one TV.
+     *
+     * @param tvName The name of the TV
+     * @param outcome How the command ended
+     * @param response The TV's response, or a description of the failure
+     * @param latencyNanos The time from dispatch to completion, in nanoseconds
+     */
+    public FleetResult(String tvName, Outcome outcome, String response, long latencyNanos) {
+        this.tvName = tvName;
+        this.outcome = outcome;
+        this.response = response;
+        this.latencyNanos = latencyNanos;
+    }
+
+    public String getTvName() {
+        return tvName;
+    }
+
+    public Outcome getOutcome() {
+        return outcome;
+    }
+
+    /**
+     * Tells whether the TV answered in time.
+     *
+     * @return true if the outcome is {@link Outcome#OK}
+     */
+    public boolean isSuccess() {
+        return outcome == Outcome.OK;
+    }
+
+    /**
+     * Gets the TV's response, or a description of the failure.
+     *
+     * @return The response or error message
+     */
+    public String getResponse() {
+        return response;
+    }
+
+    /**
+     * Gets the time from dispatch until the TV answered, failed or timed out.
+     *
+     * @return The latency in nanoseconds
+     */
+    public long getLatencyNanos() {
+        return latencyNanos;
+    }
+
+    /**
+     * Returns a string representation of the result.
+     *
+     * @return A string in the format "name: OUTCOME in N ms - response"
+     */
+    @Override
+    public String toString() {
+        return tvName + ": " + outcome + " in " + (latencyNanos / 1_000_000) + " ms - " + response;
+    }
+}
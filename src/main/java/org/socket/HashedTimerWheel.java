@@ -0,0 +1,226 @@
+package org.socket;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A timer for large numbers of coarse timeouts, such as one per connection. Timeouts are
+ * kept in a ring of buckets, one per tick, and a timeout further away than one turn of the
+ * ring waits in its bucket for the remaining number of turns. Scheduling and cancelling
+ * only append to a queue, and the timer thread moves each timeout into its bucket or out
+ * of it in constant time, so their cost does not depend on how many timeouts are pending.
+ * Each tick the thread only visits the bucket of that tick.
+ * <p>
+ * A timeout fires on the timer thread up to one tick after its deadline, never before it.
+ * Tasks must be short and must not block, as they delay every later timeout.
+ */
+final class HashedTimerWheel {
+
+    private static final int MAX_TRANSFERS_PER_TICK = 100_000;
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Queue<Timeout> scheduledTimeouts = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingTimeouts = new AtomicInteger();
+    private final AtomicBoolean started = new AtomicBoolean();
+    private final Thread worker;
+    private long startTime;
+    private long tick = 0;
+
+    /**
+     * Creates a timer whose thread starts with the first scheduled timeout.
+     *
+     * @param name The name of the timer thread
+     * @param tickMillis The length of a tick, which is the timer's resolution
+     * @param ticksPerWheel The number of buckets, rounded up to a power of two
+     */
+    HashedTimerWheel(String name, long tickMillis, int ticksPerWheel) {
+        if (tickMillis < 1 || ticksPerWheel < 1 || ticksPerWheel > 1 << 20) {
+            throw new IllegalArgumentException("Invalid timer wheel: tick " + tickMillis + " ms, "
+                    + ticksPerWheel + " ticks");
+        }
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        this.wheel = new Bucket[size];
+        for (int i = 0; i < this.wheel.length; i++) {
+            this.wheel[i] = new Bucket();
+        }
+        this.mask = this.wheel.length - 1;
+        this.worker = new Thread(this::run, name);
+        this.worker.setDaemon(true);
+    }
+
+    /**
+     * Schedules a task to run once a delay has passed. May be called from any thread.
+     *
+     * @param task The task, run on the timer thread
+     * @param delayNanos The delay, zero or negative to run it with the next tick
+     * @return The timeout, which can be cancelled until it fires
+     */
+    Timeout schedule(Runnable task, long delayNanos) {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            startTime = System.nanoTime();
+            worker.start();
+        }
+        Timeout timeout = new Timeout(task, System.nanoTime() + Math.max(0, delayNanos));
+        pendingTimeouts.incrementAndGet();
+        scheduledTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * Gets the number of timeouts that have neither fired nor been cancelled.
+     *
+     * @return The pending timeout count
+     */
+    int getPendingCount() {
+        return pendingTimeouts.get();
+    }
+
+    private void run() {
+        while (true) {
+            long deadline = startTime + (tick + 1) * tickNanos;
+            long now;
+            while ((now = System.nanoTime()) - deadline < 0) {
+                LockSupport.parkNanos(this, deadline - now);
+            }
+            removeCancelled();
+            transferScheduled();
+            expire(wheel[(int) (tick & mask)]);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelledTimeouts.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    /**
+     * Moves newly scheduled timeouts into their buckets. A timeout whose deadline has
+     * already passed goes into the bucket of the current tick.
+     */
+    private void transferScheduled() {
+        for (int i = 0; i < MAX_TRANSFERS_PER_TICK; i++) {
+            Timeout timeout = scheduledTimeouts.poll();
+            if (timeout == null) {
+                return;
+            }
+            if (timeout.state.get() != Timeout.PENDING) {
+                continue;
+            }
+            long due = Math.max(tick, (timeout.deadline - startTime) / tickNanos);
+            timeout.remainingRounds = (due - tick) / wheel.length;
+            wheel[(int) (due & mask)].add(timeout);
+        }
+    }
+
+    private void expire(Bucket bucket) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.remainingRounds <= 0) {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED)) {
+                    pendingTimeouts.decrementAndGet();
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) {
+                        System.err.println("Timer task failed: " + e);
+                    }
+                }
+            } else {
+                timeout.remainingRounds--;
+            }
+            timeout = next;
+        }
+    }
+
+    /**
+     * A scheduled task that has not necessarily fired yet.
+     */
+    final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+
+        private final Runnable task;
+        private final long deadline;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // Only touched by the timer thread
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(Runnable task, long deadline) {
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * Keeps the task from running, unless it already has. May be called from any thread.
+         *
+         * @return true if the timeout was pending and is now cancelled
+         */
+        boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            pendingTimeouts.decrementAndGet();
+            cancelledTimeouts.add(this);
+            return true;
+        }
+    }
+
+    /**
+     * The timeouts due in one tick of the wheel, or in that tick of a later turn,
+     * as a doubly linked list so any of them can be removed in constant time.
+     */
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            timeout.previous = tail;
+            if (tail == null) {
+                head = timeout;
+            } else {
+                tail.next = timeout;
+            }
+            tail = timeout;
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.previous == null) {
+                head = timeout.next;
+            } else {
+                timeout.previous.next = timeout.next;
+            }
+            if (timeout.next == null) {
+                tail = timeout.previous;
+            } else {
+                timeout.next.previous = timeout.previous;
+            }
+            timeout.bucket = null;
+            timeout.previous = null;
+            timeout.next = null;
+        }
+    }
+}
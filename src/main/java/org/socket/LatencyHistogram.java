@@ -0,0 +1,178 @@
+package org.socket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free latency histogram with log-linear buckets.
+ * Values below 256 ns are counted exactly; above that every power of two is split
+ * into 128 buckets, so a reported percentile is within 1% of the recorded value.
+ * Values above about 68 seconds are counted in the last bucket, the exact maximum
+ * is kept separately. Any number of threads may record concurrently; a histogram on a
+ * hot path can be split into stripes so that threads recording similar latencies do not
+ * all contend on the same bucket. A stripe's buckets are only allocated once a value is
+ * recorded into it, so a histogram nothing is recorded in takes almost no memory.
+ */
+public class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 8;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+    private static final int MAX_VALUE_BITS = 36;
+    private static final int BUCKET_COUNT = SUB_BUCKETS + (MAX_VALUE_BITS - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS;
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes;
+    private final LongAdder totalCount = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final AtomicLong maxNanos = new AtomicLong();
+
+    /**
+     * Creates a histogram with a single stripe.
+     */
+    public LatencyHistogram() {
+        this(1);
+    }
+
+    /**
+     * Creates a histogram whose buckets are split into several stripes.
+     * Each stripe takes about 30 KB once a value has been recorded into it.
+     *
+     * @param stripeCount The number of stripes, threads are spread over them by thread ID
+     */
+    public LatencyHistogram(int stripeCount) {
+        this.stripes = new AtomicReferenceArray<>(Math.max(1, stripeCount));
+    }
+
+    /**
+     * Records one latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values count as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        int stripe = stripes.length() == 1 ? 0 : (int) (Thread.currentThread().threadId() % stripes.length());
+        AtomicLongArray counts = stripes.get(stripe);
+        if (counts == null) {
+            counts = allocate(stripe);
+        }
+        counts.incrementAndGet(bucketOf(value));
+        totalCount.increment();
+        totalNanos.add(value);
+        if (value > maxNanos.get()) {
+            maxNanos.accumulateAndGet(value, Math::max);
+        }
+    }
+
+    /**
+     * Gets the number of recorded values.
+     *
+     * @return The value count
+     */
+    public long getCount() {
+        return totalCount.sum();
+    }
+
+    /**
+     * Gets the largest recorded value.
+     *
+     * @return The maximum in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMaxNanos() {
+        return maxNanos.get();
+    }
+
+    /**
+     * Gets the arithmetic mean of the recorded values.
+     *
+     * @return The mean in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getMeanNanos() {
+        long count = totalCount.sum();
+        return count == 0 ? 0 : totalNanos.sum() / count;
+    }
+
+    /**
+     * Gets the value below which the given percentage of recorded values fall.
+     * The result is the upper bound of the bucket holding that value, capped at the maximum.
+     *
+     * @param percentile The percentile between 0 and 100, e.g. 99.9
+     * @return The latency in nanoseconds, or 0 if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        long count = totalCount.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(Math.min(100.0, percentile) / 100.0 * count));
+        List<AtomicLongArray> allocated = allocatedStripes();
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            for (AtomicLongArray counts : allocated) {
+                seen += counts.get(i);
+            }
+            if (seen >= rank) {
+                return Math.min(upperBoundOf(i), maxNanos.get());
+            }
+        }
+        return maxNanos.get();
+    }
+
+    /**
+     * Clears all recorded values. Values recorded concurrently may be partly lost.
+     */
+    public void reset() {
+        for (AtomicLongArray counts : allocatedStripes()) {
+            for (int i = 0; i < BUCKET_COUNT; i++) {
+                counts.set(i, 0);
+            }
+        }
+        totalCount.reset();
+        totalNanos.reset();
+        maxNanos.set(0);
+    }
+
+    /**
+     * Allocates the buckets of a stripe on the first value recorded into it, keeping those
+     * of a thread that got there first.
+     */
+    private AtomicLongArray allocate(int stripe) {
+        AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+        return stripes.compareAndSet(stripe, null, counts) ? counts : stripes.get(stripe);
+    }
+
+    private List<AtomicLongArray> allocatedStripes() {
+        List<AtomicLongArray> allocated = new ArrayList<>(stripes.length());
+        for (int i = 0; i < stripes.length(); i++) {
+            AtomicLongArray counts = stripes.get(i);
+            if (counts != null) {
+                allocated.add(counts);
+            }
+        }
+        return allocated;
+    }
+
+    private static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_VALUE_BITS - SUB_BUCKET_BITS) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (value >>> shift) - HALF_SUB_BUCKETS;
+        return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + subBucket;
+    }
+
+    private static long upperBoundOf(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+        long subBucket = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
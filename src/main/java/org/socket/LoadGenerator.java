@@ -0,0 +1,395 @@
+package org.socket;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a configurable command mix against one or more TV servers and reports
+ * throughput and latency percentiles per command.
+ * <p>
+ * In closed-loop mode every connection sends its next command as soon as the previous
+ * response arrives. In open-loop mode commands are scheduled at a fixed total rate and
+ * latency is measured from the time a command was due rather than the time it was sent,
+ * so a stalled server shows up in the percentiles instead of silently lowering the load.
+ */
+public final class LoadGenerator {
+
+    private static final Map<Commands, Integer> DEFAULT_MIX = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_MIX.put(Commands.STATUS, 40);
+        DEFAULT_MIX.put(Commands.GET_CHANNEL, 30);
+        DEFAULT_MIX.put(Commands.CHANNEL_UP, 20);
+        DEFAULT_MIX.put(Commands.TURN_ON_OR_OFF, 10);
+    }
+
+    private final List<TV> targets;
+    private final int connections;
+    private final WireProtocol protocol;
+    private final Map<Commands, CommandStats> stats = new EnumMap<>(Commands.class);
+    private final CommandStats totalStats = new CommandStats();
+    private final LongAdder eventsReceived = new LongAdder();
+    private final LongAdder connectionsLost = new LongAdder();
+    private Commands[] mixCommands;
+    private int[] mixThresholds;
+    private int subscribers = 0;
+    private int devices = 1;
+    private double rate = 0;
+    private volatile boolean recording = false;
+
+    /**
+     * Creates a load generator. Connections are spread round-robin over the targets.
+     *
+     * @param targets The TVs to connect to
+     * @param connections The number of command connections to open
+     * @param protocol The protocol the connections speak
+     */
+    public LoadGenerator(List<TV> targets, int connections, WireProtocol protocol) {
+        if (targets.isEmpty() || connections < 1) {
+            throw new IllegalArgumentException("Need at least one target and one connection");
+        }
+        this.targets = targets;
+        this.connections = connections;
+        this.protocol = protocol;
+        setCommandMix(DEFAULT_MIX);
+    }
+
+    /**
+     * Sets the relative weight of each command. EXIT is not allowed as it ends the connection,
+     * nor SUBSCRIBE, which would turn a load connection into an event stream.
+     *
+     * @param weights The weight per command, e.g. STATUS=3 and CHANNEL_UP=1
+     */
+    public void setCommandMix(Map<Commands, Integer> weights) {
+        List<Commands> commands = new ArrayList<>();
+        List<Integer> thresholds = new ArrayList<>();
+        int total = 0;
+        for (Map.Entry<Commands, Integer> entry : weights.entrySet()) {
+            if (entry.getKey() == Commands.EXIT || entry.getKey() == Commands.SUBSCRIBE) {
+                throw new IllegalArgumentException(entry.getKey() + " cannot be part of the command mix");
+            }
+            if (entry.getValue() > 0) {
+                total += entry.getValue();
+                commands.add(entry.getKey());
+                thresholds.add(total);
+            }
+        }
+        if (commands.isEmpty()) {
+            throw new IllegalArgumentException("The command mix is empty");
+        }
+        this.mixCommands = commands.toArray(new Commands[0]);
+        this.mixThresholds = thresholds.stream().mapToInt(Integer::intValue).toArray();
+        stats.clear();
+        for (Commands command : mixCommands) {
+            stats.put(command, new CommandStats());
+        }
+    }
+
+    /**
+     * Sets how many broadcast subscribers to connect, spread over the targets. Each one
+     * opens a command connection and subscribes to state events with SUBSCRIBE.
+     *
+     * @param subscribers The number of subscribers, 0 for none
+     */
+    public void setSubscribers(int subscribers) {
+        this.subscribers = subscribers;
+    }
+
+    /**
+     * Sets how many devices each target hosts. Every command goes to a random one of them.
+     *
+     * @param devices The number of devices per target, 1 for servers hosting a single TV
+     */
+    public void setDevices(int devices) {
+        this.devices = Math.max(1, devices);
+    }
+
+    /**
+     * Sets the total request rate for open-loop mode.
+     *
+     * @param requestsPerSecond The rate over all connections, or 0 for closed-loop mode
+     */
+    public void setRate(double requestsPerSecond) {
+        this.rate = requestsPerSecond;
+    }
+
+    /**
+     * Connects, runs the load and prints the report. Nothing is recorded during warmup.
+     *
+     * @param warmupMillis How long to run before recording starts
+     * @param durationMillis How long to record
+     * @throws InterruptedException If interrupted while waiting for the run to finish
+     * @throws IllegalStateException If no connection to any target could be opened
+     */
+    public void run(long warmupMillis, long durationMillis) throws InterruptedException {
+        List<TCPClient> clients = new ArrayList<>();
+        for (int i = 0; i < connections; i++) {
+            TV target = targets.get(i % targets.size());
+            TCPClient client = new TCPClient(target.getHost(), target.getPort(), protocol);
+            if (client.isConnected()) {
+                clients.add(client);
+            } else {
+                System.err.println("Could not connect to " + target.getHost() + ":" + target.getPort());
+            }
+        }
+        if (clients.isEmpty()) {
+            throw new IllegalStateException("Could not connect to any target");
+        }
+        List<Socket> subscriberSockets = openSubscribers();
+
+        long start = System.nanoTime();
+        long recordFrom = start + warmupMillis * 1_000_000;
+        long end = recordFrom + durationMillis * 1_000_000;
+        // Each connection sends every interval, so together they make the rate. At least a
+        // nanosecond, as an interval of zero would mean closed-loop mode in drive()
+        long interval = rate > 0 ? Math.max(1, Math.round(1_000_000_000.0 * clients.size() / rate)) : 0;
+
+        try (ExecutorService drivers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < clients.size(); i++) {
+                TCPClient client = clients.get(i);
+                long firstSend = start + interval * i / clients.size();
+                drivers.submit(() -> drive(client, firstSend, interval, end));
+            }
+            long now;
+            while ((now = System.nanoTime()) < recordFrom) {
+                LockSupport.parkNanos(recordFrom - now);
+            }
+            recording = true;
+        }
+        recording = false;
+
+        for (TCPClient client : clients) {
+            client.closeConnection();
+        }
+        for (Socket socket : subscriberSockets) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing subscriber: " + e.getMessage());
+            }
+        }
+        printReport(clients.size(), subscriberSockets.size(), durationMillis);
+    }
+
+    /**
+     * Sends commands on one connection until the end time.
+     * With an interval each command is due at a fixed time and its latency counts from then.
+     * A connection that has fallen behind its schedule still stops at the end time.
+     */
+    private void drive(TCPClient client, long firstSend, long interval, long end) {
+        long due = firstSend;
+        while (true) {
+            long now = System.nanoTime();
+            if (interval > 0) {
+                if (due >= end || now >= end) {
+                    return;
+                }
+                while (now < due) {
+                    LockSupport.parkNanos(due - now);
+                    now = System.nanoTime();
+                }
+            } else if (now >= end) {
+                return;
+            }
+            Commands command = nextCommand();
+            int deviceId = devices == 1 ? TCPServer.DEFAULT_DEVICE : ThreadLocalRandom.current().nextInt(devices);
+            long sentAt = interval > 0 ? due : now;
+            boolean recorded = recording;
+            boolean success;
+            try {
+                client.sendCommandAsync(deviceId, command).get();
+                success = true;
+            } catch (ExecutionException e) {
+                success = false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            long latency = System.nanoTime() - sentAt;
+            if (recorded) {
+                stats.get(command).record(latency, success);
+                totalStats.record(latency, success);
+            }
+            if (!success && !client.isConnected()) {
+                connectionsLost.increment();
+                return;
+            }
+            due += interval;
+        }
+    }
+
+    private Commands nextCommand() {
+        int pick = ThreadLocalRandom.current().nextInt(mixThresholds[mixThresholds.length - 1]);
+        for (int i = 0; i < mixThresholds.length; i++) {
+            if (pick < mixThresholds[i]) {
+                return mixCommands[i];
+            }
+        }
+        return mixCommands[mixCommands.length - 1];
+    }
+
+    private List<Socket> openSubscribers() {
+        List<Socket> sockets = new ArrayList<>();
+        for (int i = 0; i < subscribers; i++) {
+            TV target = targets.get(i % targets.size());
+            try {
+                Socket socket = new Socket(target.getHost(), target.getPort());
+                socket.getOutputStream().write((Commands.SUBSCRIBE.getCode() + "\n").getBytes(StandardCharsets.US_ASCII));
+                sockets.add(socket);
+                Thread.ofVirtual().start(() -> countEvents(socket));
+            } catch (IOException e) {
+                System.err.println("Could not subscribe to " + target.getHost() + ":" + target.getPort() + ": " + e.getMessage());
+            }
+        }
+        return sockets;
+    }
+
+    private void countEvents(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (recording && line.startsWith(StateEvent.SEQUENCE_PREFIX)) {
+                    eventsReceived.increment();
+                }
+            }
+        } catch (IOException e) {
+            // Closed at the end of the run
+        }
+    }
+
+    private void printReport(int openConnections, int openSubscribers, long durationMillis) {
+        double seconds = durationMillis / 1000.0;
+        System.out.println();
+        System.out.printf("%d connections, %d subscribers, %s, %s protocol, %.1f s%n",
+                openConnections, openSubscribers,
+                rate > 0 ? String.format("open loop at %.0f req/s", rate) : "closed loop",
+                protocol, seconds);
+        System.out.printf("%-16s %10s %8s %12s %10s %10s %10s %10s%n",
+                "COMMAND", "COUNT", "ERRORS", "REQ/S", "P50(us)", "P99(us)", "P99.9(us)", "MAX(us)");
+        for (Map.Entry<Commands, CommandStats> entry : stats.entrySet()) {
+            entry.getValue().print(entry.getKey().name(), seconds);
+        }
+        totalStats.print("TOTAL", seconds);
+        if (openSubscribers > 0) {
+            System.out.printf("Broadcast events received: %d (%.0f/s)%n",
+                    eventsReceived.sum(), eventsReceived.sum() / seconds);
+        }
+        if (connectionsLost.sum() > 0) {
+            System.out.println("Connections lost: " + connectionsLost.sum());
+        }
+    }
+
+    /**
+     * Latencies and error count for one command.
+     */
+    private static final class CommandStats {
+        private final LatencyHistogram latencies = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+
+        void record(long latencyNanos, boolean success) {
+            latencies.record(latencyNanos);
+            if (!success) {
+                errors.increment();
+            }
+        }
+
+        void print(String label, double seconds) {
+            System.out.printf("%-16s %10d %8d %12.1f %10.1f %10.1f %10.1f %10.1f%n",
+                    label, latencies.getCount(), errors.sum(), latencies.getCount() / seconds,
+                    latencies.getValueAtPercentile(50) / 1000.0,
+                    latencies.getValueAtPercentile(99) / 1000.0,
+                    latencies.getValueAtPercentile(99.9) / 1000.0,
+                    latencies.getMaxNanos() / 1000.0);
+        }
+    }
+
+    /**
+     * Runs a load test from the command line.
+     *
+     * @param args Options in the form --name=value:
+     *             --targets     - Comma-separated host:port list (default: 127.0.0.1:1238)
+     *             --connections - Number of command connections (default: 8)
+     *             --subscribers - Number of broadcast subscribers (default: 0)
+     *             --devices     - Devices hosted by each target (default: 1)
+     *             --rate        - Total requests per second, 0 for closed loop (default: 0)
+     *             --duration    - Seconds to record (default: 10)
+     *             --warmup      - Seconds to run before recording (default: 2)
+     *             --protocol    - TEXT or BINARY (default: TEXT)
+     *             --mix         - Command weights, e.g. STATUS=3,CHANNEL_UP=1
+     */
+    public static void main(String[] args) throws InterruptedException {
+        Map<String, String> options = new LinkedHashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                System.err.println("Ignoring argument: " + arg);
+                continue;
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+
+        List<TV> targets = new ArrayList<>();
+        for (String target : options.getOrDefault("targets", "127.0.0.1:1238").split(",")) {
+            int separator = target.lastIndexOf(':');
+            try {
+                String host = target.substring(0, separator).trim();
+                targets.add(new TV(host + ":" + target.substring(separator + 1).trim(), host,
+                        Integer.parseInt(target.substring(separator + 1).trim())));
+            } catch (RuntimeException e) {
+                System.err.println("Invalid target, skipping: " + target);
+            }
+        }
+        WireProtocol protocol = WireProtocol.TEXT;
+        try {
+            protocol = WireProtocol.valueOf(options.getOrDefault("protocol", "TEXT").trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            System.err.println("Invalid protocol argument, using default: " + protocol);
+        }
+
+        LoadGenerator generator = new LoadGenerator(targets, intOption(options, "connections", 8), protocol);
+        generator.setSubscribers(intOption(options, "subscribers", 0));
+        generator.setDevices(intOption(options, "devices", 1));
+        generator.setRate(intOption(options, "rate", 0));
+        if (options.containsKey("mix")) {
+            Map<Commands, Integer> mix = new LinkedHashMap<>();
+            for (String weight : options.get("mix").split(",")) {
+                String[] parts = weight.split("=");
+                try {
+                    mix.put(Commands.valueOf(parts[0].trim().toUpperCase()), Integer.parseInt(parts[1].trim()));
+                } catch (RuntimeException e) {
+                    System.err.println("Invalid command weight, skipping: " + weight);
+                }
+            }
+            generator.setCommandMix(mix);
+        }
+        generator.run(intOption(options, "warmup", 2) * 1000L, intOption(options, "duration", 10) * 1000L);
+    }
+
+    private static int intOption(Map<String, String> options, String name, int defaultValue) {
+        String value = options.get(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid " + name + " argument, using default: " + defaultValue);
+            return defaultValue;
+        }
+    }
+}
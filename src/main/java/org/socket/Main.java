@@ -1,11 +1,23 @@
 package org.socket;
 
+import java.io.IOException;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
 /**
  * Main entry point for the TV control application.
  * This class initializes the TCP servers for TVs, creates the TV manager,
  * and starts the interactive TV controller.
  */
 public class Main {
+
+    private static final long CONNECT_TIMEOUT_MILLIS = 5000;
+    // Well above the 30 s between the STATUS pings the TV manager sends on idle connections
+    private static final long READ_IDLE_TIMEOUT_MILLIS = 120000;
+    private static final long WRITE_IDLE_TIMEOUT_MILLIS = 30000;
+
     /**
      * Application entry point. Sets up and starts TCP servers for TVs,
      * initializes TV management, and launches the interactive controller.
@@ -13,6 +25,10 @@ public class Main {
      * @param args Command line arguments:
      *             args[0] - Host address (default: 127.0.0.1)
      *             args[1] - Port number (default: 1238)
+     *             args[2] - Execution mode (default: PLATFORM_POOL)
+     *             args[3] - Number of TVs hosted by a single server (default: one server per TV)
+     *             args[4] - Directory where servers keep their state across restarts (default: none)
+     *             args[5] - Number of sockets each server accepts on, sharing its port (default: 1)
      */
     public static void main(String[] args) {
         String host = "127.0.0.1";
@@ -31,15 +47,61 @@ public class Main {
                 System.err.println("Invalid port argument, using default: " + port);
             }
         }
+        ExecutionMode mode = ExecutionMode.PLATFORM_POOL;
+        if (args.length >= 3) {
+            try {
+                mode = ExecutionMode.valueOf(args[2].trim().toUpperCase());
+            } catch (IllegalArgumentException e) {
+                System.err.println("Invalid execution mode argument, using default: " + mode);
+            }
+        }
+        int deviceCount = 0;
+        if (args.length >= 4) {
+            try {
+                deviceCount = Integer.parseInt(args[3]);
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid device count argument, using one server per TV");
+            }
+        }
+        Path stateDirectory = null;
+        if (args.length >= 5) {
+            try {
+                stateDirectory = Path.of(args[4]);
+            } catch (InvalidPathException e) {
+                System.err.println("Invalid state directory argument, state will not be kept: " + e.getMessage());
+            }
+        }
+        int acceptorCount = 1;
+        if (args.length >= 6) {
+            try {
+                acceptorCount = Math.max(1, Integer.parseInt(args[5]));
+            } catch (NumberFormatException e) {
+                System.err.println("Invalid acceptor count argument, using default: " + acceptorCount);
+            }
+        }
+        if (deviceCount > 0) {
+            startMultiTenant(host, port, mode, deviceCount, stateDirectory, acceptorCount);
+            return;
+        }
         System.out.println(host + ":" + port);
         System.out.println("Port 1: " + port);
         System.out.println("Port 2: " + (port + 1));
         System.out.println("Port 3: " + (port + 2));
 
 
-        TCPServer tvServerPort2005 = new TCPServer(host, (port), 6);
-        TCPServer tvServerPort3001 = new TCPServer(host, (port + 1), 4);
-        TCPServer tvServerPort5060 = new TCPServer(host, (port + 2), 2);
+        TCPServer tvServerPort2005 = new TCPServer(host, (port), 6, mode, 1, acceptorCount);
+        TCPServer tvServerPort3001 = new TCPServer(host, (port + 1), 4, mode, 1, acceptorCount);
+        TCPServer tvServerPort5060 = new TCPServer(host, (port + 2), 2, mode, 1, acceptorCount);
+        enableStateJournal(tvServerPort2005, stateDirectory);
+        enableStateJournal(tvServerPort3001, stateDirectory);
+        enableStateJournal(tvServerPort5060, stateDirectory);
+        configureTimeouts(tvServerPort2005);
+        configureTimeouts(tvServerPort3001);
+        configureTimeouts(tvServerPort5060);
+        // The TV manager subscribes to state events on its command connections
+        tvServerPort2005.setBroadcastListenerEnabled(false);
+        tvServerPort3001.setBroadcastListenerEnabled(false);
+        tvServerPort5060.setBroadcastListenerEnabled(false);
 
         Thread tvServerPort2005Thread = new Thread(tvServerPort2005::start);
         Thread tvServerPort3001Thread = new Thread(tvServerPort3001::start);
@@ -50,9 +112,10 @@ public class Main {
         tvServerPort5060Thread.start();
 
         TVManager tvManager = new TVManager();
-        tvManager.addTV(new TV("Master bedroom", host, tvServerPort2005.getPort()));
-        tvManager.addTV(new TV("Living room", host, tvServerPort3001.getPort()));
-        tvManager.addTV(new TV("Kitchen", host, tvServerPort5060.getPort()));
+        tvManager.addTVs(List.of(
+                new TV("Master bedroom", host, tvServerPort2005.getPort()),
+                new TV("Living room", host, tvServerPort3001.getPort()),
+                new TV("Kitchen", host, tvServerPort5060.getPort())), CONNECT_TIMEOUT_MILLIS);
 
         TVController controller = new TVController(tvManager);
         controller.start();
@@ -72,4 +135,63 @@ public class Main {
 
 
     }
+
+    /**
+     * Starts one server hosting all TVs as devices and controls them over shared connections.
+     *
+     * @param host The host address
+     * @param port The port of the shared server
+     * @param mode The execution mode of the server
+     * @param deviceCount The number of TVs to host
+     * @param stateDirectory The directory where the server keeps its state, or null
+     * @param acceptorCount The number of sockets the server accepts on
+     */
+    private static void startMultiTenant(String host, int port, ExecutionMode mode, int deviceCount,
+                                         Path stateDirectory, int acceptorCount) {
+        System.out.println(host + ":" + port + " hosting " + deviceCount + " TVs");
+        TCPServer server = new TCPServer(host, port, 8, mode, deviceCount, acceptorCount);
+        enableStateJournal(server, stateDirectory);
+        configureTimeouts(server);
+        server.setBroadcastListenerEnabled(false);
+        new Thread(server::start).start();
+
+        TVManager tvManager = new TVManager();
+        List<TV> tvs = new ArrayList<>(deviceCount);
+        for (int deviceId = 0; deviceId < deviceCount; deviceId++) {
+            tvs.add(new TV("TV " + deviceId, host, server.getPort(), deviceId));
+        }
+        tvManager.addTVs(tvs, CONNECT_TIMEOUT_MILLIS);
+
+        TVController controller = new TVController(tvManager);
+        controller.start();
+    }
+
+    /**
+     * Closes connections that stay silent or stop reading, so abandoned clients cannot
+     * hold the few threads of a small server.
+     *
+     * @param server The server, not yet started
+     */
+    private static void configureTimeouts(TCPServer server) {
+        server.setReadIdleTimeoutMillis(READ_IDLE_TIMEOUT_MILLIS);
+        server.setWriteIdleTimeoutMillis(WRITE_IDLE_TIMEOUT_MILLIS);
+    }
+
+    /**
+     * Restores a server's state from its own subdirectory of the state directory, named
+     * after its port, and keeps its state there from now on.
+     *
+     * @param server The server, not yet started
+     * @param stateDirectory The state directory, or null to keep state in memory only
+     */
+    private static void enableStateJournal(TCPServer server, Path stateDirectory) {
+        if (stateDirectory == null) {
+            return;
+        }
+        try {
+            server.enableStateJournal(stateDirectory.resolve(String.valueOf(server.getPort())));
+        } catch (IOException e) {
+            System.err.println("Could not open state journal, state will not be kept: " + e.getMessage());
+        }
+    }
 }
@@ -0,0 +1,470 @@
+package org.socket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking transport for the command connections of any number of {@link TCPClient}s,
+ * the client-side counterpart of {@link NioServerEngine}. Connections are spread
+ * round-robin over a small number of selector event loops, so a manager controlling
+ * thousands of TVs needs no thread per connection.
+ * <p>
+ * Connections are opened on the caller's thread, including the binary protocol greeting,
+ * which must complete within the connect timeout, then handed to an event loop. From then on only the loop touches the channel: requests
+ * are queued by any thread and written by the loop, and responses and state events are
+ * decoded by the loop and passed to the connection's {@link Receiver}, whose callbacks
+ * therefore must not block.
+ */
+class NioClientEngine {
+
+    private static final int READ_BUFFER_SIZE = 16 * 1024;
+
+    private final EventLoop[] eventLoops;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+    private final AtomicInteger connectionCount = new AtomicInteger();
+    private volatile boolean running = true;
+
+    /**
+     * Creates an engine and starts its event loops.
+     *
+     * @param eventLoopCount The number of selector threads to start
+     * @throws IOException If a selector cannot be opened
+     */
+    NioClientEngine(int eventLoopCount) throws IOException {
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread loopThread = new Thread(eventLoops[i], "nio-client-loop-" + i);
+            loopThread.setDaemon(true);
+            loopThread.start();
+        }
+    }
+
+    /**
+     * Receives what the server sends on one connection. Called on the connection's event loop.
+     */
+    interface Receiver {
+
+        /**
+         * Receives a line from a connection using the text protocol.
+         *
+         * @param line The line without its separator
+         */
+        void onLine(String line);
+
+        /**
+         * Receives a response from a connection using the binary protocol.
+         *
+         * @param response The combined status and state, see {@link BinaryProtocol#response(int, int)}
+         */
+        void onResponse(int response);
+
+        /**
+         * Receives an event frame from a connection using the binary protocol.
+         *
+         * @param header The frame's first byte
+         * @param payload The frame's payload
+         */
+        void onEvent(int header, byte[] payload);
+
+        /**
+         * Called once when the connection fails or is closed. Nothing is received after this.
+         *
+         * @param cause Why the connection ended
+         */
+        void onClosed(IOException cause);
+    }
+
+    /**
+     * Opens a command connection and hands it to one of the event loops.
+     * For the binary protocol the greeting is exchanged before this returns.
+     *
+     * @param host The hostname or IP address of the server
+     * @param port The command port of the server
+     * @param protocol The protocol the connection speaks
+     * @param connectTimeoutMillis How long to wait for the server to accept the connection and,
+     *                             for the binary protocol, to answer the greeting; zero for no limit
+     * @param receiver Receives the server's responses and events
+     * @return The connection
+     * @throws IOException If the server cannot be reached or greeted in time, or refuses the binary protocol
+     */
+    Connection connect(String host, int port, WireProtocol protocol, int connectTimeoutMillis,
+                       Receiver receiver) throws IOException {
+        if (!running) {
+            throw new IOException("Client transport is closed");
+        }
+        long deadline = connectTimeoutMillis > 0
+                ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(connectTimeoutMillis) : Long.MAX_VALUE;
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            channel.socket().setTcpNoDelay(true);
+            if (protocol == WireProtocol.BINARY) {
+                greet(channel, deadline);
+            }
+            channel.configureBlocking(false);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        EventLoop loop = eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)];
+        Connection connection = new Connection(channel, loop, protocol, receiver);
+        connectionCount.incrementAndGet();
+        loop.register(connection);
+        return connection;
+    }
+
+    /**
+     * Exchanges the binary protocol greeting on a blocking channel. The reply is read through
+     * the channel's socket, whose read timeout is kept to the time left until the deadline.
+     */
+    private static void greet(SocketChannel channel, long deadline) throws IOException {
+        ByteBuffer hello = ByteBuffer.wrap(new byte[]{BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+        while (hello.hasRemaining()) {
+            channel.write(hello);
+        }
+        Socket socket = channel.socket();
+        InputStream in = socket.getInputStream();
+        byte[] reply = new byte[2];
+        int received = 0;
+        while (received < reply.length) {
+            if (deadline != Long.MAX_VALUE) {
+                long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+                if (remainingMillis <= 0) {
+                    throw new SocketTimeoutException("Server did not answer the greeting in time");
+                }
+                socket.setSoTimeout((int) Math.min(Integer.MAX_VALUE, remainingMillis));
+            }
+            int read = in.read(reply, received, reply.length - received);
+            if (read < 0) {
+                throw new IOException("Connection closed by server");
+            }
+            received += read;
+        }
+        socket.setSoTimeout(0);
+        if (reply[0] != BinaryProtocol.MAGIC) {
+            throw new IOException("Server did not accept the binary protocol");
+        }
+    }
+
+    /**
+     * Gets the number of open connections.
+     *
+     * @return The connection count
+     */
+    int getConnectionCount() {
+        return connectionCount.get();
+    }
+
+    /**
+     * Stops all event loops and closes their connections.
+     */
+    void shutdown() {
+        running = false;
+        for (EventLoop loop : eventLoops) {
+            loop.close();
+        }
+    }
+
+    /**
+     * A single selector thread serving the connections assigned to it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        private final Queue<Connection> pendingConnections = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingWrites = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(Connection connection) {
+            pendingConnections.add(connection);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to write the requests queued on a connection, or to close it.
+         * May be called from any thread.
+         */
+        void scheduleWrite(Connection connection) {
+            pendingWrites.add(connection);
+            selector.wakeup();
+        }
+
+        void close() {
+            if (!selector.isOpen()) {
+                return;
+            }
+            selector.wakeup();
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    ((Connection) key.attachment()).close(new IOException("Client transport is closed"));
+                }
+                selector.close();
+            } catch (ClosedSelectorException e) {
+                // Closed by the loop itself in the meantime
+            } catch (IOException e) {
+                System.err.println("Error closing client event loop: " + e.getMessage());
+            }
+            Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                connection.close(new IOException("Client transport is closed"));
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPendingConnections();
+                    runPendingWrites();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable(readBuffer);
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                        } catch (IOException e) {
+                            connection.close(e);
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Client event loop stopped: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPendingConnections() {
+            Connection connection;
+            while ((connection = pendingConnections.poll()) != null) {
+                try {
+                    connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+                    connection.onWriteScheduled();
+                } catch (IOException e) {
+                    connection.close(e);
+                }
+            }
+        }
+
+        private void runPendingWrites() {
+            Connection connection;
+            while ((connection = pendingWrites.poll()) != null) {
+                connection.writeScheduled.set(false);
+                try {
+                    connection.onWriteScheduled();
+                } catch (IOException e) {
+                    connection.close(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * One command connection. Requests may be sent from any thread; everything else
+     * is only touched by its event loop thread.
+     */
+    final class Connection {
+
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final WireProtocol protocol;
+        private final Receiver receiver;
+        private final Queue<ByteBuffer> outbound = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean writeScheduled = new AtomicBoolean();
+        private SelectionKey key;
+        private volatile boolean closeRequested = false;
+        private volatile boolean closed = false;
+
+        private byte[] line = new byte[128];
+        private int lineLength = 0;
+        private int frameHeader = -1;
+        private byte[] framePayload;
+        private int framePosition = -1;
+
+        private Connection(SocketChannel channel, EventLoop loop, WireProtocol protocol, Receiver receiver) {
+            this.channel = channel;
+            this.loop = loop;
+            this.protocol = protocol;
+            this.receiver = receiver;
+        }
+
+        /**
+         * Queues a request for the event loop to write. May be called from any thread;
+         * requests queued by one thread are written in order.
+         *
+         * @param request The encoded request, not modified afterwards
+         * @throws IOException If the connection is closed
+         */
+        void send(byte[] request) throws IOException {
+            if (closed || closeRequested) {
+                throw new IOException("Connection closed");
+            }
+            outbound.add(ByteBuffer.wrap(request));
+            scheduleWrite();
+        }
+
+        /**
+         * Asks the event loop to close the connection. May be called from any thread.
+         */
+        void requestClose() {
+            if (!closed) {
+                closeRequested = true;
+                scheduleWrite();
+            }
+        }
+
+        /**
+         * Tells whether the connection is open, even if it was asked to close.
+         *
+         * @return false once the connection is closed
+         */
+        boolean isOpen() {
+            return !closed && !closeRequested;
+        }
+
+        private void scheduleWrite() {
+            if (writeScheduled.compareAndSet(false, true)) {
+                loop.scheduleWrite(this);
+            }
+        }
+
+        void onWriteScheduled() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (closeRequested) {
+                close(new IOException("Connection closed"));
+                return;
+            }
+            if (key != null && (key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                flush(); // otherwise the requests go out once the pending output is written
+            }
+        }
+
+        /**
+         * Writes as many queued requests as the socket accepts. Unlike the server, the
+         * connection keeps reading while output is pending, since the server only stops
+         * answering once the client stops reading.
+         */
+        void flush() throws IOException {
+            ByteBuffer request;
+            while ((request = outbound.peek()) != null) {
+                channel.write(request);
+                if (request.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                outbound.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        void onReadable(ByteBuffer readBuffer) throws IOException {
+            int read;
+            while ((read = channel.read(readBuffer)) > 0) {
+                readBuffer.flip();
+                while (readBuffer.hasRemaining() && !closed) {
+                    if (protocol == WireProtocol.BINARY) {
+                        acceptFrameByte(readBuffer.get() & 0xFF);
+                    } else {
+                        acceptLineByte(readBuffer.get());
+                    }
+                }
+                readBuffer.clear();
+            }
+            if (read == -1) {
+                close(new IOException("Connection closed by server"));
+            }
+        }
+
+        private void acceptLineByte(byte b) {
+            if (b == '\n') {
+                int length = lineLength > 0 && line[lineLength - 1] == '\r' ? lineLength - 1 : lineLength;
+                lineLength = 0;
+                receiver.onLine(new String(line, 0, length, StandardCharsets.UTF_8));
+                return;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, line.length * 2);
+            }
+            line[lineLength++] = b;
+        }
+
+        /**
+         * Decodes the binary protocol: a response is a status byte and a state byte, an
+         * event frame a header byte with the event flag, a length byte and the payload.
+         */
+        private void acceptFrameByte(int b) {
+            if (frameHeader < 0) {
+                frameHeader = b;
+                return;
+            }
+            if ((frameHeader & BinaryProtocol.EVENT_FLAG) == 0) {
+                int status = frameHeader;
+                frameHeader = -1;
+                receiver.onResponse(BinaryProtocol.response(status, b));
+                return;
+            }
+            if (framePosition < 0) {
+                framePayload = new byte[b];
+                framePosition = 0;
+            } else {
+                framePayload[framePosition++] = (byte) b;
+            }
+            if (framePosition == framePayload.length) {
+                int header = frameHeader;
+                byte[] payload = framePayload;
+                frameHeader = -1;
+                framePayload = null;
+                framePosition = -1;
+                receiver.onEvent(header, payload);
+            }
+        }
+
+        void close(IOException cause) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            connectionCount.decrementAndGet();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client socket: " + e.getMessage());
+            }
+            receiver.onClosed(cause);
+        }
+    }
+}
@@ -0,0 +1,418 @@
+package org.socket;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Non-blocking engine for a {@link TCPServer} running in {@link ExecutionMode#NIO_EVENT_LOOP}.
+ * Connections are accepted on the caller's thread, and on a thread of their own for any
+ * further listening channels sharing the port, and spread round-robin over a small
+ * number of selector event loops, so thousands of idle connections cost no threads.
+ * Requests are decoded and answered by a {@link CommandSession} per connection, so both
+ * the text and the binary protocol are served exactly as by {@link ClientHandler}.
+ * <p>
+ * State events for connections that sent SUBSCRIBE are pushed by the subscribers' writer
+ * threads and handed to the event loop, which appends them to the connection's output
+ * between responses.
+ */
+class NioServerEngine {
+
+    private static final int FLUSH_THRESHOLD = 8192;
+    private static final int MAX_PUSHED_BYTES = 64 * 1024;
+
+    private final TCPServer server;
+    private final EventLoop[] eventLoops;
+    private volatile boolean running = true;
+    private final AtomicInteger nextLoop = new AtomicInteger();
+
+    /**
+     * Creates an engine with the given number of event loops.
+     *
+     * @param server The server whose commands are executed
+     * @param eventLoopCount The number of selector threads to start
+     */
+    NioServerEngine(TCPServer server, int eventLoopCount) {
+        this.server = server;
+        this.eventLoops = new EventLoop[Math.max(1, eventLoopCount)];
+    }
+
+    /**
+     * Starts the event loops and accepts connections until the first channel is closed.
+     * Blocks the calling thread, which accepts on the first channel; every further
+     * channel gets an accept thread of its own.
+     *
+     * @param serverChannels The bound server channels to accept connections from
+     * @throws IOException If a selector cannot be opened or accepting fails
+     */
+    void run(List<ServerSocketChannel> serverChannels) throws IOException {
+        for (int i = 0; i < eventLoops.length; i++) {
+            eventLoops[i] = new EventLoop(Selector.open());
+            Thread loopThread = new Thread(eventLoops[i], "nio-loop-" + server.getPort() + "-" + i);
+            loopThread.start();
+        }
+
+        for (int i = 1; i < serverChannels.size(); i++) {
+            ServerSocketChannel serverChannel = serverChannels.get(i);
+            Thread acceptorThread = new Thread(() -> {
+                try {
+                    accept(serverChannel);
+                } catch (IOException e) {
+                    if (running) {
+                        System.err.println("Error accepting connection: " + e.getMessage());
+                    }
+                }
+            }, "nio-acceptor-" + server.getPort() + "-" + i);
+            acceptorThread.setDaemon(true);
+            acceptorThread.start();
+        }
+        accept(serverChannels.get(0));
+    }
+
+    private void accept(ServerSocketChannel serverChannel) throws IOException {
+        serverChannel.configureBlocking(true);
+        while (running) {
+            SocketChannel channel = serverChannel.accept();
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            eventLoops[Math.floorMod(nextLoop.getAndIncrement(), eventLoops.length)].register(channel);
+        }
+    }
+
+    /**
+     * Stops all event loops and closes their connections.
+     */
+    void shutdown() {
+        running = false;
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                loop.close();
+            }
+        }
+    }
+
+    /**
+     * Gets the number of accepted connections not yet picked up by their event loop.
+     *
+     * @return The number of pending registrations
+     */
+    int getPendingRegistrations() {
+        int pending = 0;
+        for (EventLoop loop : eventLoops) {
+            if (loop != null) {
+                pending += loop.pendingChannels.size();
+            }
+        }
+        return pending;
+    }
+
+    /**
+     * A single selector thread serving the connections assigned to it.
+     */
+    private final class EventLoop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<SocketChannel> pendingChannels = new ConcurrentLinkedQueue<>();
+        private final Queue<Connection> pendingPushes = new ConcurrentLinkedQueue<>();
+
+        EventLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void register(SocketChannel channel) {
+            pendingChannels.add(channel);
+            selector.wakeup();
+        }
+
+        /**
+         * Asks the loop to pick up the events pushed to a connection, or to close it.
+         * May be called from any thread.
+         */
+        void schedulePush(Connection connection) {
+            pendingPushes.add(connection);
+            selector.wakeup();
+        }
+
+        void close() {
+            if (!selector.isOpen()) {
+                return;
+            }
+            try {
+                for (SelectionKey key : selector.keys()) {
+                    if (key.attachment() != null) {
+                        ((Connection) key.attachment()).close();
+                    } else {
+                        key.channel().close();
+                    }
+                }
+                selector.close();
+            } catch (IOException | ClosedSelectorException e) {
+                System.err.println("Error closing event loop: " + e.getMessage());
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (running) {
+                    selector.select();
+                    registerPendingChannels();
+                    runPendingPushes();
+
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isReadable()) {
+                                connection.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                connection.onWritable();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Error handling client connection: " + e.getMessage());
+                            connection.close();
+                        }
+                    }
+                }
+            } catch (IOException | ClosedSelectorException e) {
+                if (running) {
+                    System.err.println("Event loop stopped: " + e.getMessage());
+                }
+            }
+        }
+
+        private void registerPendingChannels() {
+            SocketChannel channel;
+            while ((channel = pendingChannels.poll()) != null) {
+                try {
+                    SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                    key.attach(new Connection(channel, key, this));
+                } catch (IOException e) {
+                    System.err.println("Error registering client connection: " + e.getMessage());
+                }
+            }
+        }
+
+        private void runPendingPushes() {
+            Connection connection;
+            while ((connection = pendingPushes.poll()) != null) {
+                connection.pushScheduled.set(false);
+                try {
+                    connection.onPushed();
+                } catch (IOException e) {
+                    System.err.println("Error handling client connection: " + e.getMessage());
+                    connection.close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Per-connection read and write state, only touched by its event loop thread,
+     * apart from the queue of pushed events.
+     */
+    private final class Connection {
+
+        private final SocketChannel channel;
+        private final SelectionKey key;
+        private final EventLoop loop;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(512);
+        private final CommandSession session;
+        private final ConnectionWatchdog watchdog;
+        private final Queue<byte[]> pushed = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean pushScheduled = new AtomicBoolean();
+        private int pushedBytes = 0; // guarded by this
+        private volatile boolean closeRequested = false;
+
+        private volatile boolean closed = false;
+
+        Connection(SocketChannel channel, SelectionKey key, EventLoop loop) {
+            this.channel = channel;
+            this.key = key;
+            this.loop = loop;
+            String clientName = String.valueOf(channel.socket().getRemoteSocketAddress());
+            this.session = new CommandSession(server, new EventOutputStream() {
+                @Override
+                protected void deliver(byte[] batch, int length) throws IOException {
+                    push(batch, length);
+                }
+            }, this::requestClose, clientName);
+            this.watchdog = server.watchConnection(clientName, this::requestClose);
+            server.metrics().connectionOpened();
+        }
+
+        /**
+         * Queues a batch of events for the event loop to write. Called by a subscriber's
+         * writer thread, which waits while too much pushed output is pending, so a client
+         * that stops reading falls behind in the broadcast hub instead of here.
+         */
+        private void push(byte[] batch, int length) throws IOException {
+            synchronized (this) {
+                while (pushedBytes >= MAX_PUSHED_BYTES && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException("Interrupted pushing events");
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                pushed.add(Arrays.copyOf(batch, length));
+                pushedBytes += length;
+            }
+            schedulePush();
+        }
+
+        /**
+         * Asks the event loop to close the connection. May be called from any thread.
+         */
+        private void requestClose() {
+            if (!closed) {
+                closeRequested = true;
+                schedulePush();
+            }
+        }
+
+        private void schedulePush() {
+            if (pushScheduled.compareAndSet(false, true)) {
+                loop.schedulePush(this);
+            }
+        }
+
+        void onPushed() throws IOException {
+            if (closed) {
+                return;
+            }
+            if (closeRequested) {
+                close();
+                return;
+            }
+            if ((key.interestOps() & SelectionKey.OP_WRITE) == 0) {
+                flush(); // otherwise the pushed events go out once the pending output is written
+            }
+        }
+
+        /**
+         * Drains everything the client has sent so far before writing, so responses
+         * to pipelined requests go out in a single write.
+         */
+        void onReadable() throws IOException {
+            int read;
+            while ((read = channel.read(readBuffer)) > 0) {
+                watchdog.onRead();
+                readBuffer.flip();
+                while (readBuffer.hasRemaining() && !session.isExitRequested()) {
+                    session.receive(readBuffer.get());
+                }
+                readBuffer.clear();
+                if (session.isExitRequested() || session.output().position() >= FLUSH_THRESHOLD) {
+                    break;
+                }
+            }
+            if (read == -1) {
+                close();
+                return;
+            }
+            flush();
+        }
+
+        void onWritable() throws IOException {
+            flush();
+        }
+
+        /**
+         * Writes as much pending output as the socket accepts, followed by pushed events.
+         * While output is pending the connection stops reading, so a client that never
+         * reads cannot make the write buffer grow without bound, and the watchdog closes
+         * the connection if the output makes no progress for too long.
+         */
+        private void flush() throws IOException {
+            while (true) {
+                ByteBuffer output = session.output();
+                output.flip();
+                int written = channel.write(output);
+                boolean pending = output.hasRemaining();
+                output.compact();
+                if (pending) {
+                    if (written > 0 || !watchdog.isWriting()) {
+                        watchdog.onWriteStarted();
+                    }
+                    key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+                if (watchdog.isWriting()) {
+                    watchdog.onWriteFinished();
+                }
+                if (session.isExitRequested()) {
+                    close();
+                    return;
+                }
+                if (!movePushed()) {
+                    if (key.isValid()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Appends pushed events to the output buffer, all responses in it being complete,
+         * and wakes writers waiting for room.
+         *
+         * @return true if any events were appended
+         */
+        private boolean movePushed() {
+            int moved = 0;
+            byte[] batch;
+            while (session.output().position() < FLUSH_THRESHOLD && (batch = pushed.poll()) != null) {
+                session.append(batch);
+                moved += batch.length;
+            }
+            if (moved == 0) {
+                return false;
+            }
+            synchronized (this) {
+                pushedBytes -= moved;
+                notifyAll();
+            }
+            return true;
+        }
+
+        void close() {
+            if (closed) {
+                return;
+            }
+            synchronized (this) {
+                closed = true;
+                notifyAll();
+            }
+            watchdog.stop();
+            session.close();
+            server.metrics().connectionClosed();
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing client socket: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package org.socket;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntSupplier;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Runtime metrics of one {@link TCPServer}. Recording on the command path only
+ * touches striped counters and a striped histogram, so threads executing commands
+ * concurrently do not contend on a shared lock or counter.
+ */
+class ServerMetrics implements ServerMetricsMXBean {
+
+    private static final int HISTOGRAM_STRIPES = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static final long RATE_WINDOW_NANOS = 1_000_000_000L;
+
+    private final BroadcastHub broadcastHub;
+    private final IntSupplier executorQueueDepth;
+    private final LatencyHistogram[] commandLatencies = new LatencyHistogram[Commands.values().length];
+    private final LongAdder unknownCommands = new LongAdder();
+    private final LongAdder activeConnections = new LongAdder();
+    private final LongAdder timedOutConnections = new LongAdder();
+
+    private long rateWindowStart = System.nanoTime();
+    private long rateWindowEvents = 0;
+    private double eventsPerSecond = 0;
+
+    /**
+     * Creates the metrics of a server.
+     *
+     * @param broadcastHub The server's broadcast hub
+     * @param executorQueueDepth Reads the number of connections waiting to be served
+     */
+    ServerMetrics(BroadcastHub broadcastHub, IntSupplier executorQueueDepth) {
+        this.broadcastHub = broadcastHub;
+        this.executorQueueDepth = executorQueueDepth;
+        for (int i = 0; i < commandLatencies.length; i++) {
+            commandLatencies[i] = new LatencyHistogram(HISTOGRAM_STRIPES);
+        }
+    }
+
+    /**
+     * Records one executed command.
+     *
+     * @param command The command
+     * @param latencyNanos How long executing it took
+     */
+    void recordCommand(Commands command, long latencyNanos) {
+        commandLatencies[command.ordinal()].record(latencyNanos);
+    }
+
+    void recordUnknownCommand() {
+        unknownCommands.increment();
+    }
+
+    void connectionOpened() {
+        activeConnections.increment();
+    }
+
+    void connectionClosed() {
+        activeConnections.decrement();
+    }
+
+    void connectionTimedOut() {
+        timedOutConnections.increment();
+    }
+
+    @Override
+    public Map<String, Long> getCommandCounts() {
+        Map<String, Long> counts = new LinkedHashMap<>();
+        for (Commands command : Commands.values()) {
+            counts.put(command.name(), commandLatencies[command.ordinal()].getCount());
+        }
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getCommandLatencyP50Micros() {
+        return latencyMicros(histogram -> histogram.getValueAtPercentile(50));
+    }
+
+    @Override
+    public Map<String, Double> getCommandLatencyP99Micros() {
+        return latencyMicros(histogram -> histogram.getValueAtPercentile(99));
+    }
+
+    @Override
+    public Map<String, Double> getCommandLatencyMaxMicros() {
+        return latencyMicros(LatencyHistogram::getMaxNanos);
+    }
+
+    private Map<String, Double> latencyMicros(ToDoubleFunction<LatencyHistogram> nanos) {
+        Map<String, Double> latencies = new LinkedHashMap<>();
+        for (Commands command : Commands.values()) {
+            latencies.put(command.name(), nanos.applyAsDouble(commandLatencies[command.ordinal()]) / 1000.0);
+        }
+        return latencies;
+    }
+
+    @Override
+    public long getUnknownCommandCount() {
+        return unknownCommands.sum();
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return activeConnections.intValue();
+    }
+
+    @Override
+    public long getTimedOutConnections() {
+        return timedOutConnections.sum();
+    }
+
+    @Override
+    public int getBroadcastSubscribers() {
+        return broadcastHub.getSubscriberCount();
+    }
+
+    @Override
+    public long getBroadcastEventsPublished() {
+        return broadcastHub.getPublishedEvents();
+    }
+
+    /**
+     * Gets the publish rate over the window since the rate was last recomputed.
+     * The window is restarted at most once per second, however often this is read.
+     *
+     * @return The events published per second
+     */
+    @Override
+    public synchronized double getBroadcastEventsPerSecond() {
+        long now = System.nanoTime();
+        if (now - rateWindowStart >= RATE_WINDOW_NANOS) {
+            long published = broadcastHub.getPublishedEvents();
+            eventsPerSecond = (published - rateWindowEvents) * 1e9 / (now - rateWindowStart);
+            rateWindowStart = now;
+            rateWindowEvents = published;
+        }
+        return eventsPerSecond;
+    }
+
+    @Override
+    public long getBroadcastWriteFailures() {
+        return broadcastHub.getWriteFailures();
+    }
+
+    @Override
+    public long getBroadcastDroppedEvents() {
+        return broadcastHub.getDroppedEvents();
+    }
+
+    @Override
+    public int getExecutorQueueDepth() {
+        return executorQueueDepth.getAsInt();
+    }
+
+    /**
+     * Renders all metrics on one line. Commands that were never executed are left out.
+     *
+     * @return A line such as "STATS connections=2 ... | STATUS n=10 p50=1.2us p99=3.0us max=8.1us"
+     */
+    @Override
+    public String getSummary() {
+        StringBuilder summary = new StringBuilder("STATS")
+                .append(" connections=").append(getActiveConnections())
+                .append(" timedOut=").append(getTimedOutConnections())
+                .append(" subscribers=").append(getBroadcastSubscribers())
+                .append(" events=").append(getBroadcastEventsPublished())
+                .append(" events/s=").append(String.format(Locale.ROOT, "%.1f", getBroadcastEventsPerSecond()))
+                .append(" writeFailures=").append(getBroadcastWriteFailures())
+                .append(" dropped=").append(getBroadcastDroppedEvents())
+                .append(" queueDepth=").append(getExecutorQueueDepth())
+                .append(" unknown=").append(getUnknownCommandCount());
+        String separator = " | ";
+        for (Commands command : Commands.values()) {
+            LatencyHistogram histogram = commandLatencies[command.ordinal()];
+            if (histogram.getCount() == 0) {
+                continue;
+            }
+            summary.append(separator).append(command.name())
+                    .append(" n=").append(histogram.getCount())
+                    .append(String.format(Locale.ROOT, " p50=%.1fus p99=%.1fus max=%.1fus",
+                            histogram.getValueAtPercentile(50) / 1000.0,
+                            histogram.getValueAtPercentile(99) / 1000.0,
+                            histogram.getMaxNanos() / 1000.0));
+            separator = "; ";
+        }
+        return summary.toString();
+    }
+}
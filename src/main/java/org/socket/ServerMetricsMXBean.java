@@ -0,0 +1,109 @@
+package org.socket;
+
+import java.util.Map;
+
+/**
+ * JMX view of a {@link TCPServer}'s runtime metrics.
+ * Registered as {@code org.socket:type=TCPServer,host="<host>",port=<port>} when the server
+ * is created, with the host it was given and the port it is bound to.
+ */
+public interface ServerMetricsMXBean {
+
+    /**
+     * Gets the number of requests per command name since startup.
+     *
+     * @return The number of requests per command name since startup
+     */
+    Map<String, Long> getCommandCounts();
+
+    /**
+     * Gets the median execution latency per command name, in microseconds.
+     *
+     * @return The median execution latency per command name, in microseconds
+     */
+    Map<String, Double> getCommandLatencyP50Micros();
+
+    /**
+     * Gets the 99th percentile execution latency per command name, in microseconds.
+     *
+     * @return The 99th percentile execution latency per command name, in microseconds
+     */
+    Map<String, Double> getCommandLatencyP99Micros();
+
+    /**
+     * Gets the maximum execution latency per command name, in microseconds.
+     *
+     * @return The maximum execution latency per command name, in microseconds
+     */
+    Map<String, Double> getCommandLatencyMaxMicros();
+
+    /**
+     * Gets the number of requests that did not name a known command.
+     *
+     * @return The number of requests that did not name a known command
+     */
+    long getUnknownCommandCount();
+
+    /**
+     * Gets the number of open command connections.
+     *
+     * @return The number of open command connections
+     */
+    int getActiveConnections();
+
+    /**
+     * Gets the number of command connections closed for reaching a timeout.
+     *
+     * @return The number of command connections closed for reaching a timeout
+     */
+    long getTimedOutConnections();
+
+    /**
+     * Gets the number of connected broadcast subscribers.
+     *
+     * @return The number of connected broadcast subscribers
+     */
+    int getBroadcastSubscribers();
+
+    /**
+     * Gets the number of state change events published since startup.
+     *
+     * @return The number of state change events published since startup
+     */
+    long getBroadcastEventsPublished();
+
+    /**
+     * Gets the rate of published events, measured over at least the last second.
+     *
+     * @return The rate of published events, measured over at least the last second
+     */
+    double getBroadcastEventsPerSecond();
+
+    /**
+     * Gets the number of subscriber connections lost to write errors.
+     *
+     * @return The number of subscriber connections lost to write errors
+     */
+    long getBroadcastWriteFailures();
+
+    /**
+     * Gets the number of events dropped or conflated for slow subscribers.
+     *
+     * @return The number of events dropped or conflated for slow subscribers
+     */
+    long getBroadcastDroppedEvents();
+
+    /**
+     * Gets the number of connections waiting for a worker thread or event loop.
+     *
+     * @return The number of connections waiting for a worker thread or event loop
+     */
+    int getExecutorQueueDepth();
+
+    /**
+     * Gets all metrics on one line, as returned by the STATS command.
+     *
+     * @return All metrics on one line, as returned by the STATS command
+     */
+    String getSummary();
+}
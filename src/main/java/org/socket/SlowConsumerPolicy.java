@@ -0,0 +1,23 @@
+package org.socket;
+
+/**
+ * What a {@link TCPServer} does with a broadcast subscriber whose outbound queue is full.
+ */
+public enum SlowConsumerPolicy {
+    /**
+     * Discard the new event, keeping the ones already queued.
+     */
+    DROP,
+
+    /**
+     * Keep the new event in a slot per device and event type, replacing an older event of
+     * the same device and type that did not fit either, so the subscriber still receives
+     * the latest power and channel change of every device.
+     */
+    CONFLATE,
+
+    /**
+     * Close the subscriber's connection.
+     */
+    DISCONNECT
+}
@@ -0,0 +1,237 @@
+package org.socket;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A TV state change delivered to broadcast subscribers.
+ * The event is encoded once when it is created and the same bytes are written
+ * to every subscriber. Events of devices other than {@link TCPServer#DEFAULT_DEVICE}
+ * are prefixed with the device ID, as in {@code DEVICE 42 CHANNEL_CHANGE: 3, Version: 7}.
+ * <p>
+ * Events published by a server carry a sequence number, one higher for every event it
+ * publishes, and are prefixed with it, as in {@code SEQ 1234 CHANNEL_CHANGE: 3, Version: 7}.
+ * A subscriber that loses its connection can resume after the last number it saw.
+ */
+public final class StateEvent {
+
+    /**
+     * The kind of change an event reports.
+     */
+    public enum Type {
+        /** The TV was turned on or off. */
+        POWER,
+        /** The active channel changed while the TV was on. */
+        CHANNEL,
+        /** The complete current state, sent in place of several events that were collapsed. */
+        SNAPSHOT
+    }
+
+    static final String SEQUENCE_PREFIX = "SEQ ";
+
+    private static final Pattern EVENT_LINE = Pattern.compile(
+            "SEQ (\\d+) (?:DEVICE (\\d+) )?(TV_STATE|TV_STATE_CHANGE|CHANNEL_CHANGE): "
+                    + "(?:(ON|OFF), Channel: )?(\\d+), Version: (\\d+)");
+
+    private final long sequence;
+    private final int deviceId;
+    private final Integer deviceKey;
+    private final Type type;
+    private final long state;
+    private final byte[] encoded;
+
+    /**
+     * Constructs an event for a change of the default device.
+     *
+     * @param type The kind of change
+     * @param state The state word the change produced, see {@link TVState}
+     */
+    public StateEvent(Type type, long state) {
+        this(TCPServer.DEFAULT_DEVICE, type, state);
+    }
+
+    /**
+     * Constructs an event for the state produced by a change of one device.
+     *
+     * @param deviceId The device that changed
+     * @param type The kind of change
+     * @param state The state word the change produced, see {@link TVState}
+     */
+    public StateEvent(int deviceId, Type type, long state) {
+        this(0, deviceId, type, state);
+    }
+
+    /**
+     * Constructs an event with the sequence number it was published under.
+     *
+     * @param sequence The sequence number, or 0 for an event that was not published
+     * @param deviceId The device that changed
+     * @param type The kind of change
+     * @param state The state word the change produced, see {@link TVState}
+     */
+    StateEvent(long sequence, int deviceId, Type type, long state) {
+        this.sequence = sequence;
+        this.deviceId = deviceId;
+        this.deviceKey = deviceId;
+        this.type = type;
+        this.state = state;
+        this.encoded = (describe() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Gets the number the event was published under.
+     *
+     * @return The sequence number, or 0 if the event was not published by a server
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Gets the device ID boxed once per event, for use as a map key by every subscriber.
+     *
+     * @return The boxed device ID
+     */
+    Integer deviceKey() {
+        return deviceKey;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * Gets the state word this event reports.
+     *
+     * @return The state word, see {@link TVState}
+     */
+    public long getState() {
+        return state;
+    }
+
+    public long getVersion() {
+        return TVState.version(state);
+    }
+
+    /**
+     * Gets the event as a line of text, shared by all subscribers.
+     * The returned array must not be modified.
+     *
+     * @return The encoded line, including the line separator
+     */
+    public byte[] getEncoded() {
+        return encoded;
+    }
+
+    /**
+     * Creates a snapshot event reporting the same state.
+     *
+     * @return A {@link Type#SNAPSHOT} event for the same device and state
+     */
+    public StateEvent toSnapshot() {
+        return type == Type.SNAPSHOT ? this : new StateEvent(sequence, deviceId, Type.SNAPSHOT, state);
+    }
+
+    /**
+     * Picks the more recent of two events for the same device.
+     *
+     * @param first An event
+     * @param second Another event for the same device
+     * @return The event with the higher version, or the first if they are equal
+     */
+    static StateEvent newer(StateEvent first, StateEvent second) {
+        return second.getVersion() > first.getVersion() ? second : first;
+    }
+
+    /**
+     * Reads the sequence number of an event line received from a server.
+     *
+     * @param line An event line
+     * @return The sequence number, or -1 if the line has none
+     */
+    static long parseSequence(String line) {
+        if (!line.startsWith(SEQUENCE_PREFIX)) {
+            return -1;
+        }
+        int end = line.indexOf(' ', SEQUENCE_PREFIX.length());
+        try {
+            return Long.parseLong(line.substring(SEQUENCE_PREFIX.length(), end < 0 ? line.length() : end));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Parses an event line received from a server, as produced by {@link #toString()}.
+     * Only lines with a sequence number are recognised, so responses on a command
+     * connection that subscribed to events are never mistaken for events.
+     *
+     * @param line A line without line separator
+     * @return The event, or null if the line is not a numbered event
+     */
+    static StateEvent parse(String line) {
+        if (!line.startsWith(SEQUENCE_PREFIX)) {
+            return null;
+        }
+        Matcher matcher = EVENT_LINE.matcher(line);
+        if (!matcher.matches()) {
+            return null;
+        }
+        try {
+            long sequence = Long.parseLong(matcher.group(1));
+            int deviceId = matcher.group(2) == null ? TCPServer.DEFAULT_DEVICE : Integer.parseInt(matcher.group(2));
+            Type type;
+            switch (matcher.group(3)) {
+                case "TV_STATE":
+                    type = Type.SNAPSHOT;
+                    break;
+                case "TV_STATE_CHANGE":
+                    type = Type.POWER;
+                    break;
+                default:
+                    type = Type.CHANNEL;
+            }
+            // Channel changes are only reported while the TV is on
+            boolean on = matcher.group(4) == null || matcher.group(4).equals("ON");
+            long state = TVState.pack(on, Integer.parseInt(matcher.group(5)), Long.parseLong(matcher.group(6)));
+            return new StateEvent(sequence, deviceId, type, state);
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private String describe() {
+        String prefix = sequence > 0 ? SEQUENCE_PREFIX + sequence + " " : "";
+        if (deviceId != TCPServer.DEFAULT_DEVICE) {
+            return prefix + "DEVICE " + deviceId + " " + describeChange();
+        }
+        return prefix + describeChange();
+    }
+
+    private String describeChange() {
+        if (type == Type.SNAPSHOT) {
+            return "TV_STATE: " + (TVState.isOn(state) ? "ON" : "OFF")
+                    + ", Channel: " + TVState.channel(state) + ", Version: " + getVersion();
+        }
+        if (type == Type.POWER) {
+            return "TV_STATE_CHANGE: " + (TVState.isOn(state) ? "ON" : "OFF")
+                    + ", Channel: " + TVState.channel(state) + ", Version: " + getVersion();
+        }
+        return "CHANNEL_CHANGE: " + TVState.channel(state) + ", Version: " + getVersion();
+    }
+
+    /**
+     * Returns the event as it is sent to subscribers.
+     *
+     * @return The event text without line separator
+     */
+    @Override
+    public String toString() {
+        return describe();
+    }
+}
@@ -0,0 +1,410 @@
+package org.socket;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Write-ahead log of the state changes of a {@link TCPServer}'s devices, kept in
+ * memory-mapped files so that a restarted server comes back with the state it had.
+ * <p>
+ * Every change appends a 16-byte record with the device ID and its new state word to
+ * the current log segment. Appending claims a slot with one atomic increment and writes
+ * it into the mapping, so it costs no system call. A background thread forces the
+ * written pages to disk every few milliseconds, committing all records of that interval
+ * at once: a crash of the server loses nothing, a crash of the machine loses at most
+ * the last interval. When a segment is full, logging continues in the next of three
+ * segments and the background thread writes a snapshot of every device's state, after
+ * which the full segment can be reused. The snapshot has two more segments' worth of
+ * changes to finish in, and a segment holds at least half a record per device, so that
+ * time grows with the size of the snapshot and appending does not wait for it. Recovery
+ * reads the snapshot and at most three segments, so its cost depends on the number of
+ * devices, not on how many changes were ever made.
+ * <p>
+ * State words carry a version that grows with every change of a device, so records can
+ * be applied in any order: for each device the word with the highest version wins. That
+ * makes records written concurrently, out of order, or left over from an earlier use of
+ * a segment harmless.
+ */
+final class StateJournal implements Closeable {
+
+    static final int MIN_SEGMENT_RECORDS = 1 << 16;
+    static final int SEGMENT_FILES = 3;
+    static final long SYNC_INTERVAL_MILLIS = 10;
+
+    private static final int SEGMENT_MAGIC = 0x54564C47;
+    private static final int SNAPSHOT_MAGIC = 0x54565353;
+    private static final int HEADER_SIZE = 16;
+    private static final int RECORD_SIZE = 16;
+    private static final int MAX_HOLE = 256;
+    private static final int MAX_SEGMENT_RECORDS = (Integer.MAX_VALUE - HEADER_SIZE) / RECORD_SIZE;
+    private static final String SNAPSHOT_FILE = "state.snapshot";
+
+    private final Path directory;
+    private final TVState[] devices;
+    private final int segmentRecords;
+    private final SegmentFile[] files = new SegmentFile[SEGMENT_FILES];
+    private final Thread syncThread;
+    private volatile Segment current;
+    private volatile Segment previous;
+    private volatile long snapshotRequested;
+    private volatile long snapshotGeneration;
+    private volatile boolean closed = false;
+
+    private StateJournal(Path directory, TVState[] devices) {
+        this.directory = directory;
+        this.devices = devices;
+        this.segmentRecords = Math.min(MAX_SEGMENT_RECORDS, Math.max(MIN_SEGMENT_RECORDS, devices.length / 2));
+        this.syncThread = new Thread(this::syncLoop, "state-journal-sync");
+        this.syncThread.setDaemon(true);
+    }
+
+    /**
+     * Opens the journal in a directory, restores the devices to the state it holds and
+     * starts logging their changes.
+     *
+     * @param directory The directory holding the log segments and snapshot, created if missing
+     * @param devices The devices to restore and log, indexed by device ID
+     * @return The open journal
+     * @throws IOException If the directory cannot be read or written
+     */
+    static StateJournal open(Path directory, TVState[] devices) throws IOException {
+        long start = System.nanoTime();
+        Files.createDirectories(directory);
+        StateJournal journal = new StateJournal(directory, devices);
+        try {
+            journal.recover(start);
+        } catch (IOException e) {
+            journal.closeFiles();
+            throw e;
+        }
+        journal.syncThread.start();
+        return journal;
+    }
+
+    /**
+     * Logs the state a change produced.
+     *
+     * @param deviceId The device that changed
+     * @param state The state word the change produced, see {@link TVState}
+     */
+    void append(int deviceId, long state) {
+        while (true) {
+            Segment segment = current;
+            int slot = segment.nextSlot.getAndIncrement();
+            if (slot < segment.records) {
+                int offset = HEADER_SIZE + slot * RECORD_SIZE;
+                MappedByteBuffer buffer = segment.file.buffer;
+                buffer.putInt(offset, deviceId);
+                buffer.putInt(offset + 4, checksum(segment.generation, deviceId, state));
+                buffer.putLong(offset + 8, state);
+                return;
+            }
+            roll(segment);
+        }
+    }
+
+    /**
+     * Switches to the next segment once the current one is full and asks for a snapshot
+     * covering it. The next segment's file is only reused once a snapshot covers its
+     * previous contents. That snapshot was requested two full segments ago, so the
+     * appending thread only waits here if the sync thread takes longer to write it than
+     * the changes filling two segments take.
+     */
+    private void roll(Segment full) {
+        synchronized (this) {
+            if (current != full) {
+                return;
+            }
+            boolean interrupted = false;
+            while (snapshotGeneration < full.generation + 1 - SEGMENT_FILES && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            long generation = full.generation + 1;
+            Segment next = new Segment(files[fileIndex(generation)], generation, segmentRecords);
+            next.writeHeader();
+            previous = full;
+            current = next;
+            snapshotRequested = full.generation;
+        }
+        LockSupport.unpark(syncThread);
+    }
+
+    /**
+     * Forces written records to disk once per interval and writes requested snapshots.
+     */
+    private void syncLoop() {
+        long intervalNanos = TimeUnit.MILLISECONDS.toNanos(SYNC_INTERVAL_MILLIS);
+        while (!closed) {
+            LockSupport.parkNanos(this, intervalNanos);
+            try {
+                Segment full = previous;
+                if (full != null) {
+                    full.force();
+                }
+                current.force();
+                long requested = snapshotRequested;
+                if (requested > snapshotGeneration) {
+                    writeSnapshot(requested);
+                    synchronized (this) {
+                        snapshotGeneration = requested;
+                        if (previous == full) {
+                            previous = null;
+                        }
+                        notifyAll();
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                System.err.println("Error writing state journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Reads the snapshot and the log segments written after it, restores the devices,
+     * and starts a new segment.
+     */
+    private void recover(long start) throws IOException {
+        long[] words = new long[devices.length];
+        for (int i = 0; i < devices.length; i++) {
+            words[i] = devices[i].get();
+        }
+        long covered = readSnapshot(words);
+        long lastGeneration = covered;
+        long[] fileGenerations = new long[files.length];
+        int replayed = 0;
+        for (int i = 0; i < files.length; i++) {
+            files[i] = new SegmentFile(directory.resolve("state-" + i + ".log"), segmentRecords);
+            MappedByteBuffer buffer = files[i].buffer;
+            if (buffer.getInt(0) != SEGMENT_MAGIC) {
+                continue;
+            }
+            long generation = buffer.getLong(8);
+            fileGenerations[i] = generation;
+            lastGeneration = Math.max(lastGeneration, generation);
+            if (generation > covered) {
+                replayed += replay(buffer, generation, words);
+            }
+        }
+        for (int i = 0; i < devices.length; i++) {
+            devices[i].restore(words[i]);
+        }
+
+        // The new segment reuses the file of an older generation. Unless a snapshot already
+        // covers what that file holds, which it does unless the server stopped while writing
+        // one, take a snapshot first; otherwise leave that to the sync thread.
+        long generation = lastGeneration + 1;
+        if (fileGenerations[fileIndex(generation)] > covered) {
+            writeSnapshot(lastGeneration);
+            covered = lastGeneration;
+        }
+        this.snapshotGeneration = covered;
+        this.snapshotRequested = lastGeneration;
+        this.current = new Segment(files[fileIndex(generation)], generation, segmentRecords);
+        this.current.writeHeader();
+        System.out.printf("Restored %d devices from %s (%d log records) in %.1f ms%n", devices.length,
+                directory, replayed, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Merges the snapshot, if there is one, into the given state words.
+     *
+     * @return The last log generation the snapshot covers, or 0 without a snapshot
+     */
+    private long readSnapshot(long[] words) throws IOException {
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(path)) {
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != SNAPSHOT_MAGIC) {
+            System.err.println("Ignoring invalid state snapshot " + path);
+            return 0;
+        }
+        int count = buffer.getInt();
+        long generation = buffer.getLong();
+        for (int i = 0; i < count && i < words.length && buffer.remaining() >= Long.BYTES; i++) {
+            words[i] = newer(words[i], buffer.getLong());
+        }
+        return generation;
+    }
+
+    /**
+     * Merges the valid records of a segment into the given state words. Records left over
+     * from an earlier generation of the file fail the checksum, so scanning stops at the
+     * first long run of invalid slots, past any left empty by writers still in flight when
+     * the server stopped. The segment's size is read from its header, as it may have been
+     * written for a different number of devices.
+     *
+     * @return The number of records read
+     */
+    private static int replay(MappedByteBuffer buffer, long generation, long[] words) {
+        int slots = Math.min(buffer.getInt(4), (buffer.capacity() - HEADER_SIZE) / RECORD_SIZE);
+        int records = 0;
+        int holes = 0;
+        for (int slot = 0; slot < slots && holes < MAX_HOLE; slot++) {
+            int offset = HEADER_SIZE + slot * RECORD_SIZE;
+            int deviceId = buffer.getInt(offset);
+            long word = buffer.getLong(offset + 8);
+            if (word == 0 || buffer.getInt(offset + 4) != checksum(generation, deviceId, word)) {
+                holes++;
+                continue;
+            }
+            holes = 0;
+            records++;
+            if (deviceId >= 0 && deviceId < words.length) {
+                words[deviceId] = newer(words[deviceId], word);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Writes the state of every device to a new snapshot file and moves it over the old
+     * one, so a crash while writing leaves the previous snapshot intact.
+     *
+     * @param generation The last log generation whose changes the snapshot includes
+     */
+    private void writeSnapshot(long generation) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + devices.length * Long.BYTES);
+        buffer.putInt(SNAPSHOT_MAGIC).putInt(devices.length).putLong(generation);
+        for (TVState device : devices) {
+            buffer.putLong(device.get());
+        }
+        buffer.flip();
+        Path path = directory.resolve(SNAPSHOT_FILE);
+        Path temporary = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(temporary, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static int fileIndex(long generation) {
+        return (int) (generation % SEGMENT_FILES);
+    }
+
+    private static long newer(long a, long b) {
+        return TVState.version(b) > TVState.version(a) ? b : a;
+    }
+
+    private static int checksum(long generation, int deviceId, long word) {
+        long mixed = (word ^ ((long) deviceId << 32) ^ generation) * 0x9E3779B97F4A7C15L;
+        return (int) (mixed >>> 32) ^ (int) mixed ^ deviceId;
+    }
+
+    /**
+     * Stops the sync thread and forces everything logged so far to disk.
+     * Changes made afterwards are still written to the mapping but no longer forced.
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notifyAll();
+        }
+        LockSupport.unpark(syncThread);
+        try {
+            syncThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Segment full = previous;
+        if (full != null) {
+            full.force();
+        }
+        current.force();
+        closeFiles();
+    }
+
+    private void closeFiles() {
+        for (SegmentFile file : files) {
+            if (file != null) {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * One of the log files, mapped once for the journal's lifetime. A file written for
+     * larger segments keeps its size, so its records can still be replayed.
+     */
+    private static final class SegmentFile {
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        SegmentFile(Path path, int records) throws IOException {
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long size = Math.min(Integer.MAX_VALUE,
+                    Math.max(channel.size(), HEADER_SIZE + (long) records * RECORD_SIZE));
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                System.err.println("Error closing state journal: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * One generation of the log, written into one of the files.
+     */
+    private static final class Segment {
+        private final SegmentFile file;
+        private final long generation;
+        private final int records;
+        private final AtomicInteger nextSlot = new AtomicInteger();
+        private int forcedSlots = -1;
+
+        Segment(SegmentFile file, long generation, int records) {
+            this.file = file;
+            this.generation = generation;
+            this.records = records;
+        }
+
+        void writeHeader() {
+            file.buffer.putInt(0, SEGMENT_MAGIC);
+            file.buffer.putInt(4, records);
+            file.buffer.putLong(8, generation);
+        }
+
+        /**
+         * Forces the file to disk if records were claimed since the last time.
+         * Only called by one thread at a time.
+         */
+        void force() {
+            int claimed = Math.min(nextSlot.get(), records);
+            if (claimed != forcedSlots) {
+                file.buffer.force();
+                forcedSlots = claimed;
+            }
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package org.socket;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Selects the state events a broadcast subscriber receives, by event type, by the channel
+ * the event reports and by device. A subscriber registers its filter when it subscribes,
+ * written as space-separated {@code key=value} terms, for example
+ * {@code type=POWER device=1,2,10-20 channel=3}. Each term lists the accepted values; an
+ * event must match every term given. Snapshots report the complete state, so they pass
+ * any type term, but not the device and channel terms.
+ * <p>
+ * Devices are kept as a short list of ranges, so a filter for a large range of devices is
+ * as small as one for a single device.
+ */
+public final class SubscriptionFilter {
+
+    /** The filter of a subscriber that receives every event. */
+    public static final SubscriptionFilter ALL = new SubscriptionFilter(null, null, 0);
+
+    private static final int MAX_DEVICE_ID = 99_999_999;
+    private static final int MAX_DEVICE_RANGES = 1024;
+
+    private final Set<StateEvent.Type> types;
+    private final int[] devices;
+    private final int channelMask;
+
+    private SubscriptionFilter(Set<StateEvent.Type> types, int[] devices, int channelMask) {
+        this.types = types;
+        this.devices = devices;
+        this.channelMask = channelMask;
+    }
+
+    /**
+     * Creates a filter that accepts every event of one device.
+     *
+     * @param deviceId The device
+     * @return The filter
+     */
+    public static SubscriptionFilter forDevice(int deviceId) {
+        return new SubscriptionFilter(null, new int[] {deviceId, deviceId}, 0);
+    }
+
+    /**
+     * Parses a filter from its terms.
+     *
+     * @param spec Terms such as {@code type=POWER device=1,2}, or an empty string for all events
+     * @return The filter
+     * @throws IllegalArgumentException If a term has an unknown key or an invalid value
+     */
+    public static SubscriptionFilter parse(String spec) {
+        String trimmed = spec.trim();
+        if (trimmed.isEmpty()) {
+            return ALL;
+        }
+        Set<StateEvent.Type> types = null;
+        int[] devices = null;
+        int channelMask = 0;
+        for (String term : trimmed.split("\\s+")) {
+            int separator = term.indexOf('=');
+            if (separator <= 0 || separator == term.length() - 1) {
+                throw new IllegalArgumentException("Expected key=value: " + term);
+            }
+            String key = term.substring(0, separator);
+            String[] values = term.substring(separator + 1).split(",");
+            switch (key) {
+                case "type":
+                    types = EnumSet.noneOf(StateEvent.Type.class);
+                    for (String value : values) {
+                        try {
+                            types.add(StateEvent.Type.valueOf(value));
+                        } catch (IllegalArgumentException e) {
+                            throw new IllegalArgumentException("Unknown event type: " + value);
+                        }
+                    }
+                    break;
+                case "device":
+                    if (values.length > MAX_DEVICE_RANGES) {
+                        throw new IllegalArgumentException("More than " + MAX_DEVICE_RANGES + " device ranges");
+                    }
+                    List<int[]> ranges = new ArrayList<>(values.length);
+                    for (String value : values) {
+                        int dash = value.indexOf('-', 1);
+                        int first = parseNumber(dash < 0 ? value : value.substring(0, dash), MAX_DEVICE_ID);
+                        int last = dash < 0 ? first : parseNumber(value.substring(dash + 1), MAX_DEVICE_ID);
+                        if (last < first) {
+                            throw new IllegalArgumentException("Empty device range: " + value);
+                        }
+                        ranges.add(new int[] {first, last});
+                    }
+                    devices = merge(ranges);
+                    break;
+                case "channel":
+                    for (String value : values) {
+                        int channel = parseNumber(value, TVState.MAX_CHANNEL);
+                        if (channel < TVState.MIN_CHANNEL) {
+                            throw new IllegalArgumentException("No such channel: " + value);
+                        }
+                        channelMask |= 1 << channel;
+                    }
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter key: " + key);
+            }
+        }
+        return new SubscriptionFilter(types, devices, channelMask);
+    }
+
+    /**
+     * Sorts device ranges and joins those that overlap or touch.
+     *
+     * @return The first and last device of each range, in ascending order
+     */
+    private static int[] merge(List<int[]> ranges) {
+        ranges.sort((a, b) -> Integer.compare(a[0], b[0]));
+        int[] merged = new int[ranges.size() * 2];
+        int count = 0;
+        for (int[] range : ranges) {
+            if (count > 0 && range[0] <= merged[count - 1] + 1) {
+                merged[count - 1] = Math.max(merged[count - 1], range[1]);
+            } else {
+                merged[count++] = range[0];
+                merged[count++] = range[1];
+            }
+        }
+        return Arrays.copyOf(merged, count);
+    }
+
+    private static int parseNumber(String value, int max) {
+        int number;
+        try {
+            number = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Not a number: " + value);
+        }
+        if (number < 0 || number > max) {
+            throw new IllegalArgumentException("Out of range: " + value);
+        }
+        return number;
+    }
+
+    /**
+     * Tells whether a subscriber with this filter receives an event.
+     *
+     * @param event A state event
+     * @return true if the event matches every term of the filter
+     */
+    public boolean matches(StateEvent event) {
+        return matchesType(event.getType()) && matchesChannel(TVState.channel(event.getState()))
+                && matchesDevice(event.getDeviceId());
+    }
+
+    boolean matchesType(StateEvent.Type type) {
+        return types == null || type == StateEvent.Type.SNAPSHOT || types.contains(type);
+    }
+
+    boolean matchesChannel(int channel) {
+        return channelMask == 0 || (channel >= 0 && channel < Integer.SIZE && (channelMask & (1 << channel)) != 0);
+    }
+
+    boolean matchesDevice(int deviceId) {
+        if (devices == null) {
+            return true;
+        }
+        int low = 0;
+        int high = devices.length / 2 - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            if (deviceId < devices[2 * middle]) {
+                high = middle - 1;
+            } else if (deviceId > devices[2 * middle + 1]) {
+                low = middle + 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether the filter is limited to some channels.
+     *
+     * @return true if the filter has a channel term
+     */
+    boolean limitsChannels() {
+        return channelMask != 0;
+    }
+
+    /**
+     * Gets the devices the filter is limited to.
+     *
+     * @return The first and last device of each accepted range, in ascending order and not
+     *         touching each other, or null if events of every device are accepted. The array
+     *         must not be modified.
+     */
+    int[] deviceRanges() {
+        return devices;
+    }
+
+    /**
+     * Gets the highest device the filter accepts.
+     *
+     * @return The highest device ID, or -1 if events of every device are accepted
+     */
+    int highestDevice() {
+        return devices == null ? -1 : devices[devices.length - 1];
+    }
+
+    /**
+     * Renders the filter in the form accepted by {@link #parse(String)}.
+     *
+     * @return The terms, or an empty string for {@link #ALL}
+     */
+    @Override
+    public String toString() {
+        StringBuilder spec = new StringBuilder();
+        if (types != null) {
+            spec.append("type=");
+            String separator = "";
+            for (StateEvent.Type type : types) {
+                spec.append(separator).append(type.name());
+                separator = ",";
+            }
+        }
+        if (devices != null) {
+            spec.append(spec.length() > 0 ? " " : "").append("device=");
+            String separator = "";
+            for (int i = 0; i < devices.length; i += 2) {
+                spec.append(separator).append(devices[i]);
+                if (devices[i + 1] > devices[i]) {
+                    spec.append('-').append(devices[i + 1]);
+                }
+                separator = ",";
+            }
+        }
+        if (channelMask != 0) {
+            spec.append(spec.length() > 0 ? " " : "").append("channel=");
+            String separator = "";
+            for (int channel = TVState.MIN_CHANNEL; channel <= TVState.MAX_CHANNEL; channel++) {
+                if ((channelMask & (1 << channel)) != 0) {
+                    spec.append(separator).append(channel);
+                    separator = ",";
+                }
+            }
+        }
+        return spec.toString();
+    }
+}
@@ -0,0 +1,17 @@
+package org.socket;
+
+/**
+ * How state changes are delivered to a broadcast subscriber.
+ */
+public enum SubscriptionMode {
+    /**
+     * Every event is queued and delivered, subject to the {@link SlowConsumerPolicy}.
+     */
+    EVERY_EVENT,
+
+    /**
+     * Only the latest state is kept. A subscriber that falls behind receives one
+     * snapshot of the current power and channel instead of the events it missed.
+     */
+    LATEST_STATE
+}
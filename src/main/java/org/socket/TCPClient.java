@@ -1,24 +1,61 @@
 package org.socket;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
 import java.util.Scanner;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
 
 /**
  * A TCP client implementation for socket-based communication with a server.
  * This class handles creating connections, sending commands, and receiving responses.
+ * Commands may be sent from many threads at once over the same connection.
+ * The connection can also carry the server's state events, see {@link #subscribe(Consumer)}.
+ * <p>
+ * By default the connection is a blocking socket read by a thread of its own. A client
+ * created with a {@link NioClientEngine} instead shares the engine's selector threads with
+ * every other client of that engine; its futures are then completed, and its events
+ * delivered, on a selector thread.
  */
 public class TCPClient {
 
+    private static final int ALL_DEVICES = -1;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
     private int port;
     private String host;
     private Socket socket;
-    private Socket broadcastSocket;
+    private volatile Socket broadcastSocket;
+    private volatile long lastBroadcastSequence = BroadcastHub.LIVE;
+    private volatile SubscriptionFilter broadcastFilter = SubscriptionFilter.ALL;
     private PrintWriter out;
     private BufferedReader in;
+    private final WireProtocol protocol;
+    private DataInputStream binaryIn;
+    private OutputStream binaryOut;
+    private final NioClientEngine engine;
+    private NioClientEngine.Connection channel;
+    private final Object writeLock = new Object();
+    private final Queue<CompletableFuture<String>> pendingResponses = new ConcurrentLinkedQueue<>();
+    private final Queue<CompletableFuture<Integer>> pendingRawResponses = new ConcurrentLinkedQueue<>();
+    private volatile Consumer<StateEvent> eventListener;
+    private volatile int subscribedDevice = ALL_DEVICES;
+    private volatile Runnable disconnectHandler;
+    private int generation = 0;
+    private boolean broken = false;
     private boolean disclaimerShown = false;
     private volatile boolean running = true;
 
@@ -30,16 +67,74 @@ public class TCPClient {
      * @param port The port number of the server
      */
     public TCPClient(String host, int port){
+        this(host, port, WireProtocol.TEXT);
+    }
+
+    /**
+     * Constructs a new TCP client that speaks the given protocol on its command connection.
+     * Automatically creates a socket connection upon instantiation.
+     *
+     * @param host The hostname or IP address of the server
+     * @param port The port number of the server
+     * @param protocol The protocol to use for commands
+     */
+    public TCPClient(String host, int port, WireProtocol protocol){
+        this(host, port, protocol, true);
+    }
+
+    /**
+     * Constructs a new TCP client, optionally without opening the command connection.
+     * A client created without one is only useful for {@link #startBroadcastListener()}.
+     *
+     * @param host The hostname or IP address of the server
+     * @param port The port number of the server
+     * @param protocol The protocol to use for commands
+     * @param connect Whether to open the command connection now
+     */
+    TCPClient(String host, int port, WireProtocol protocol, boolean connect){
+        this(host, port, protocol, null, connect);
+    }
+
+    /**
+     * Constructs a new TCP client whose command connection is served by a shared engine
+     * instead of a thread of its own. Automatically creates the connection upon instantiation.
+     *
+     * @param host The hostname or IP address of the server
+     * @param port The port number of the server
+     * @param protocol The protocol to use for commands
+     * @param engine The engine serving the connection
+     */
+    TCPClient(String host, int port, WireProtocol protocol, NioClientEngine engine){
+        this(host, port, protocol, engine, true);
+    }
+
+    private TCPClient(String host, int port, WireProtocol protocol, NioClientEngine engine, boolean connect){
         this.host = host;
         this.port = port;
-        createSocket();
+        this.protocol = protocol;
+        this.engine = engine;
+        if (connect) {
+            createSocket();
+        }
     }
 
     public void startBroadcastListener() {
+        startBroadcastListener(SubscriptionFilter.ALL);
+    }
+
+    /**
+     * Starts listening for the broadcasts the filter accepts, such as only power changes
+     * or only the changes of some devices. The server does the filtering, so events the
+     * listener does not want are never sent.
+     *
+     * @param filter The events to receive
+     */
+    public void startBroadcastListener(SubscriptionFilter filter) {
+        this.broadcastFilter = filter;
         running = true;
         //Separate thread to listen for changes made by other clients.
         try {
-            this.broadcastSocket = new Socket(this.host, (this.port + 10000));
+            this.broadcastSocket = connectBroadcastSocket();
             Thread listenerThread = new Thread(this::listenForBroadcasts);
             listenerThread.setDaemon(true);
             listenerThread.start();
@@ -48,35 +143,95 @@ public class TCPClient {
         }
     }
 
+    /**
+     * Opens a broadcast connection. The first one subscribes to events from now on,
+     * later ones resume after the last event received, so nothing is missed in between.
+     *
+     * @return The connected socket
+     * @throws IOException If the server cannot be reached
+     */
+    private Socket connectBroadcastSocket() throws IOException {
+        Socket broadcast = new Socket(this.host, (this.port + 10000));
+        long resumeAfter = this.lastBroadcastSequence;
+        String request = resumeAfter == BroadcastHub.LIVE ? BroadcastHub.SUBSCRIBE_REQUEST
+                : BroadcastHub.RESUME_REQUEST + resumeAfter;
+        String filter = this.broadcastFilter.toString();
+        if (!filter.isEmpty()) {
+            request += " " + filter;
+        }
+        OutputStream requestOut = broadcast.getOutputStream();
+        requestOut.write((request + "\n").getBytes(StandardCharsets.US_ASCII));
+        requestOut.flush();
+        return broadcast;
+    }
 
     private void listenForBroadcasts() {
-        try {
-            BufferedReader broadcastIn = new BufferedReader(
-                    new InputStreamReader(broadcastSocket.getInputStream()));
-
-            while (running) {
-                try {
-                    String broadcast = broadcastIn.readLine();
-                    if (broadcast != null) {
-                        System.out.println("\n" + "=".repeat(50));
-                        System.out.println("*** BROADCAST: " + broadcast + " ***");
-                        System.out.println("=".repeat(50));
-                        System.out.print("\nEnter command: ");
+        while (running) {
+            try {
+                BufferedReader broadcastIn = new BufferedReader(
+                        new InputStreamReader(broadcastSocket.getInputStream()));
+                String broadcast;
+                long highestSequence = BroadcastHub.LIVE;
+                while (running && (broadcast = broadcastIn.readLine()) != null) {
+                    if (broadcast.equals(BroadcastHub.KEEPALIVE_LINE)) {
+                        continue;
                     }
-                } catch (IOException e) {
-                    if (running) {
-                        System.err.println("Error receiving broadcast: " + e.getMessage());
-                        try {
-                            Thread.sleep(1000); // Avoid tight loop on error
-                        } catch (InterruptedException ie) {
-                            Thread.currentThread().interrupt();
-                        }
+                    long sequence = StateEvent.parseSequence(broadcast);
+                    // Conflated events may arrive out of sequence, so resume after the highest one
+                    if (sequence > highestSequence) {
+                        highestSequence = sequence;
+                        this.lastBroadcastSequence = sequence;
                     }
+                    printBroadcast(broadcast);
+                }
+                if (running) {
+                    System.err.println("Broadcast connection closed by server");
+                }
+            } catch (IOException e) {
+                if (running) {
+                    System.err.println("Error receiving broadcast: " + e.getMessage());
                 }
             }
-        } catch (IOException e) {
-            if (running) {
-                System.err.println("Error in broadcast listener: " + e.getMessage());
+            reconnectBroadcastSocket();
+        }
+    }
+
+    /**
+     * Shows a state change made by another client on the console.
+     *
+     * @param broadcast The event, or the event line as received
+     */
+    static void printBroadcast(Object broadcast) {
+        System.out.println("\n" + "=".repeat(50));
+        System.out.println("*** BROADCAST: " + broadcast + " ***");
+        System.out.println("=".repeat(50));
+        System.out.print("\nEnter command: ");
+    }
+
+    /**
+     * Reconnects the broadcast connection after it was lost, once a second until it succeeds
+     * or the client is closed, and resumes after the last event received.
+     */
+    private void reconnectBroadcastSocket() {
+        while (running) {
+            try {
+                Thread.sleep(1000); // Avoid tight loop on error
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            try {
+                Socket previous = this.broadcastSocket;
+                previous.close();
+                this.broadcastSocket = connectBroadcastSocket();
+                if (!running) {
+                    this.broadcastSocket.close();
+                    return;
+                }
+                System.out.println("Broadcast connection restored, resuming after event " + this.lastBroadcastSequence);
+                return;
+            } catch (IOException e) {
+                System.err.println("Error reconnecting to broadcast socket: " + e.getMessage());
             }
         }
     }
@@ -85,11 +240,28 @@ public class TCPClient {
      * Closes all open connections and resources.
      */
     public void closeConnection() {
+        if (closeResources()) {
+            System.out.println("Connections closed.");
+        }
+    }
+
+    /**
+     * Closes all open connections and resources without reporting it, as a pool does with
+     * the connections it drops in the course of its work.
+     */
+    void discard() {
+        closeResources();
+    }
+
+    private boolean closeResources() {
         running = false;
         try {
             if (this.socket != null && !this.socket.isClosed()) {
                 this.socket.close();
             }
+            if (this.channel != null) {
+                this.channel.requestClose();
+            }
             if (this.broadcastSocket != null && !this.broadcastSocket.isClosed()) {
                 this.broadcastSocket.close();
             }
@@ -99,42 +271,554 @@ public class TCPClient {
             if (this.in != null) {
                 this.in.close();
             }
-            System.out.println("Connections closed.");
+            return true;
         } catch (IOException e) {
             System.err.println("Error closing connections: " + e.getMessage());
+            return false;
         }
     }
 
     /**
      * Sends a command to the server and returns the response.
+     * With the binary protocol the response is rendered by {@link BinaryProtocol#describe(int)}.
      *
      * @param command The command to send
      * @return The server's response string
      */
     public String sendCommand(Commands command){
+        return awaitResponse(sendCommandAsync(command));
+    }
+
+    /**
+     * Sends a command to one device of a server hosting several and returns the response.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @return The server's response string
+     */
+    public String sendCommand(int deviceId, Commands command){
+        return awaitResponse(sendCommandAsync(deviceId, command));
+    }
+
+    /**
+     * Sends a command over the binary protocol and returns the undecoded response.
+     *
+     * @param command The command to send
+     * @return The combined status and state, see {@link BinaryProtocol#response(int, int)},
+     *         or -1 if the client does not use the binary protocol or the exchange failed
+     */
+    public int sendCommandRaw(Commands command){
+        return awaitRawResponse(sendCommandRawAsync(command));
+    }
+
+    /**
+     * Sends several commands in one write and returns the responses in order.
+     * The server answers pipelined requests in sequence, so a batch costs a single round trip.
+     *
+     * @param commands The commands to send
+     * @return The server's responses, one per command
+     */
+    public List<String> sendCommands(List<Commands> commands){
+        return sendCommands(TCPServer.DEFAULT_DEVICE, commands);
+    }
+
+    /**
+     * Sends several commands for one device in one write and returns the responses in order.
+     *
+     * @param deviceId The device to address
+     * @param commands The commands to send
+     * @return The server's responses, one per command
+     */
+    public List<String> sendCommands(int deviceId, List<Commands> commands){
+        List<String> responses = new ArrayList<>(commands.size());
+        if (this.protocol == WireProtocol.BINARY) {
+            for (CompletableFuture<Integer> response : submitBinary(deviceId, commands)) {
+                responses.add(awaitResponse(response.thenApply(BinaryProtocol::describe)));
+            }
+            return responses;
+        }
+        for (CompletableFuture<String> response : submitText(deviceId, commands)) {
+            responses.add(awaitResponse(response));
+        }
+        return responses;
+    }
+
+    /**
+     * Sends several commands over the binary protocol in one write and returns the
+     * undecoded responses in order.
+     *
+     * @param commands The commands to send
+     * @return One combined status and state per command, or -1 for each command
+     *         that failed or if the client does not use the binary protocol
+     */
+    public int[] sendCommandsRaw(List<Commands> commands){
+        List<CompletableFuture<Integer>> futures = submitBinary(TCPServer.DEFAULT_DEVICE, commands);
+        int[] responses = new int[futures.size()];
+        for (int i = 0; i < responses.length; i++) {
+            responses[i] = awaitRawResponse(futures.get(i));
+        }
+        return responses;
+    }
+
+    /**
+     * Sends a command without waiting for the response. Any number of threads may
+     * share one client: requests are written atomically and a single reader thread
+     * completes the futures in the order the server answers them.
+     *
+     * @param command The command to send
+     * @return A future completed with the server's response string
+     */
+    public CompletableFuture<String> sendCommandAsync(Commands command){
+        return sendCommandAsync(TCPServer.DEFAULT_DEVICE, command);
+    }
+
+    /**
+     * Sends a command to one device of a server hosting several without waiting for the response.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @return A future completed with the server's response string
+     */
+    public CompletableFuture<String> sendCommandAsync(int deviceId, Commands command){
+        if (this.protocol == WireProtocol.BINARY) {
+            return sendCommandRawAsync(deviceId, command).thenApply(BinaryProtocol::describe);
+        }
+        return submitText(deviceId, List.of(command)).get(0);
+    }
+
+    /**
+     * Sends a command over the binary protocol without waiting for the response.
+     *
+     * @param command The command to send
+     * @return A future completed with the combined status and state,
+     *         see {@link BinaryProtocol#response(int, int)}
+     */
+    public CompletableFuture<Integer> sendCommandRawAsync(Commands command){
+        return sendCommandRawAsync(TCPServer.DEFAULT_DEVICE, command);
+    }
+
+    /**
+     * Sends a command to one device over the binary protocol without waiting for the response.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @return A future completed with the combined status and state,
+     *         see {@link BinaryProtocol#response(int, int)}
+     */
+    public CompletableFuture<Integer> sendCommandRawAsync(int deviceId, Commands command){
+        return submitBinary(deviceId, List.of(command)).get(0);
+    }
+
+    private List<CompletableFuture<String>> submitText(int deviceId, List<Commands> commands){
+        return submitText(deviceId, deviceId != TCPServer.DEFAULT_DEVICE, commands);
+    }
+
+    private List<CompletableFuture<String>> submitText(int deviceId, boolean addressed, List<Commands> commands){
+        List<CompletableFuture<String>> futures = new ArrayList<>(commands.size());
+        synchronized (this.writeLock) {
+            if ((this.out == null && this.channel == null) || this.broken) {
+                return failedFutures(commands.size(), new IOException("Not connected to " + this.host + ":" + this.port));
+            }
+            StringBuilder batch = new StringBuilder();
+            for (Commands command : commands) {
+                CompletableFuture<String> future = new CompletableFuture<>();
+                this.pendingResponses.add(future);
+                futures.add(future);
+                if (addressed) {
+                    batch.append(deviceId).append(':');
+                }
+                batch.append(command.getCode()).append(System.lineSeparator());
+            }
+            if (this.channel != null) {
+                try {
+                    this.channel.send(batch.toString().getBytes(StandardCharsets.US_ASCII));
+                } catch (IOException e) {
+                    failPending(this.generation, e);
+                }
+                return futures;
+            }
+            this.out.print(batch);
+            this.out.flush();
+            if (this.out.checkError()) {
+                failPending(this.generation, new IOException("Error writing to " + this.host + ":" + this.port));
+            }
+        }
+        return futures;
+    }
+
+    private List<CompletableFuture<Integer>> submitBinary(int deviceId, List<Commands> commands){
+        return submitBinary(deviceId, deviceId != TCPServer.DEFAULT_DEVICE, commands);
+    }
+
+    private List<CompletableFuture<Integer>> submitBinary(int deviceId, boolean addressed, List<Commands> commands){
+        List<CompletableFuture<Integer>> futures = new ArrayList<>(commands.size());
+        synchronized (this.writeLock) {
+            if (this.protocol != WireProtocol.BINARY || (this.binaryOut == null && this.channel == null) || this.broken) {
+                return failedFutures(commands.size(), new IOException("Not connected with the binary protocol"));
+            }
+            byte[] batch = new byte[commands.size() * (addressed ? 2 + BinaryProtocol.DEVICE_ID_LENGTH : 1)];
+            int offset = 0;
+            for (Commands command : commands) {
+                CompletableFuture<Integer> future = new CompletableFuture<>();
+                this.pendingRawResponses.add(future);
+                futures.add(future);
+                offset = BinaryProtocol.encodeRequest(command, deviceId, addressed, batch, offset);
+            }
+            try {
+                if (this.channel != null) {
+                    this.channel.send(batch);
+                } else {
+                    this.binaryOut.write(batch);
+                    this.binaryOut.flush();
+                }
+            } catch (IOException e) {
+                failPending(this.generation, e);
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Subscribes to the server's state events on the command connection, which keeps
+     * serving commands as before. Events are passed to the listener on the client's reader
+     * thread in the order the server published them, so the listener must not block.
+     * The subscription is renewed when the connection is re-created by {@link #createSocket()},
+     * but events published while it was down are not replayed.
+     *
+     * @param listener Receives every state event
+     * @return A future completed with the server's response to SUBSCRIBE
+     */
+    public CompletableFuture<String> subscribe(Consumer<StateEvent> listener){
+        this.eventListener = listener;
+        this.subscribedDevice = ALL_DEVICES;
+        return sendSubscribe();
+    }
+
+    /**
+     * Subscribes to the state events of one device on the command connection, see
+     * {@link #subscribe(Consumer)}. The server sends no events of other devices.
+     *
+     * @param deviceId The device to watch
+     * @param listener Receives the device's state events
+     * @return A future completed with the server's response to SUBSCRIBE
+     */
+    public CompletableFuture<String> subscribe(int deviceId, Consumer<StateEvent> listener){
+        this.eventListener = listener;
+        this.subscribedDevice = deviceId;
+        return sendSubscribe();
+    }
+
+    private CompletableFuture<String> sendSubscribe(){
+        int deviceId = this.subscribedDevice;
+        boolean addressed = deviceId != ALL_DEVICES;
+        if (!addressed) {
+            deviceId = TCPServer.DEFAULT_DEVICE;
+        }
+        if (this.protocol == WireProtocol.BINARY) {
+            return submitBinary(deviceId, addressed, List.of(Commands.SUBSCRIBE)).get(0)
+                    .thenApply(BinaryProtocol::describe);
+        }
+        return submitText(deviceId, addressed, List.of(Commands.SUBSCRIBE)).get(0);
+    }
+
+    /**
+     * Sets a task to run on the reader thread once the command connection fails or is closed.
+     *
+     * @param handler The task, or null for none
+     */
+    void setDisconnectHandler(Runnable handler){
+        this.disconnectHandler = handler;
+    }
+
+    private static <T> List<CompletableFuture<T>> failedFutures(int count, IOException cause){
+        List<CompletableFuture<T>> futures = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            futures.add(CompletableFuture.failedFuture(cause));
+        }
+        return futures;
+    }
+
+    private String awaitResponse(CompletableFuture<String> response){
+        try {
+            return response.join();
+        } catch (CompletionException e) {
+            System.err.println("Error sending command: " + e.getCause().getMessage());
+            return "Error" + e.getCause().getMessage();
+        }
+    }
+
+    private int awaitRawResponse(CompletableFuture<Integer> response){
         try {
-            this.out.println(command.getCode());
-            return this.in.readLine();
-        } catch (IOException e){
-            System.err.println("Error sending command: " + e.getMessage());
-            return "Error" + e.getMessage();
+            return response.join();
+        } catch (CompletionException e) {
+            System.err.println("Error sending command: " + e.getCause().getMessage());
+            return -1;
+        }
+    }
+
+    /**
+     * Reads responses from the command connection and completes pending requests
+     * in FIFO order, until the connection fails or is closed. State events received
+     * in between are passed to the event listener.
+     *
+     * @param connection The connection generation this reader belongs to
+     * @param textIn The connection's reader for the text protocol, otherwise null
+     * @param binaryIn The connection's stream for the binary protocol, otherwise null
+     */
+    private void readResponses(int connection, BufferedReader textIn, DataInputStream binaryIn) {
+        try {
+            while (true) {
+                if (this.protocol == WireProtocol.BINARY) {
+                    int status = binaryIn.readUnsignedByte();
+                    if ((status & BinaryProtocol.EVENT_FLAG) != 0) {
+                        byte[] payload = new byte[binaryIn.readUnsignedByte()];
+                        binaryIn.readFully(payload);
+                        onEventFrame(status, payload);
+                        continue;
+                    }
+                    onRawResponse(BinaryProtocol.response(status, binaryIn.readUnsignedByte()));
+                } else {
+                    String response = textIn.readLine();
+                    if (response == null) {
+                        throw new IOException("Connection closed by server");
+                    }
+                    onLine(response);
+                }
+            }
+        } catch (IOException e) {
+            onConnectionFailed(connection, e);
+        }
+    }
+
+    private void onLine(String response) {
+        if (response.startsWith(StateEvent.SEQUENCE_PREFIX)) {
+            // Responses never start with a sequence number
+            StateEvent event = StateEvent.parse(response);
+            if (event != null) {
+                onEvent(event);
+            } else {
+                System.err.println("Ignoring malformed event: " + response);
+            }
+            return;
+        }
+        CompletableFuture<String> pending = this.pendingResponses.poll();
+        if (pending != null) {
+            pending.complete(response);
+        }
+    }
+
+    private void onRawResponse(int response) {
+        CompletableFuture<Integer> pending = this.pendingRawResponses.poll();
+        if (pending != null) {
+            pending.complete(response);
+        }
+    }
+
+    private void onEventFrame(int header, byte[] payload) {
+        try {
+            onEvent(BinaryProtocol.decodeEvent(header, payload));
+        } catch (IllegalArgumentException e) {
+            System.err.println("Ignoring malformed event: " + e.getMessage());
+        }
+    }
+
+    private void onConnectionFailed(int connection, IOException cause) {
+        boolean current;
+        synchronized (this.writeLock) {
+            current = connection == this.generation;
+            failPending(connection, cause);
+        }
+        Runnable handler = this.disconnectHandler;
+        if (current && handler != null) {
+            handler.run();
+        }
+    }
+
+    private void onEvent(StateEvent event) {
+        Consumer<StateEvent> listener = this.eventListener;
+        if (listener == null) {
+            return;
+        }
+        try {
+            listener.accept(event);
+        } catch (RuntimeException e) {
+            System.err.println("Error in state event listener: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Marks the connection broken and fails every request still waiting for a response.
+     * Must be called while holding the write lock.
+     */
+    private void failPending(int connection, IOException cause) {
+        if (connection != this.generation) {
+            return;
+        }
+        this.broken = true;
+        CompletableFuture<String> pending;
+        while ((pending = this.pendingResponses.poll()) != null) {
+            pending.completeExceptionally(cause);
+        }
+        CompletableFuture<Integer> pendingRaw;
+        while ((pendingRaw = this.pendingRawResponses.poll()) != null) {
+            pendingRaw.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Tells whether the command connection is open and has not failed.
+     *
+     * @return true if commands can be sent
+     */
+    public boolean isConnected() {
+        synchronized (this.writeLock) {
+            if (this.channel != null) {
+                return this.channel.isOpen() && !this.broken;
+            }
+            return this.socket != null && !this.socket.isClosed() && !this.broken;
         }
     }
 
     /**
      * Creates a socket connection to the server using the specified host and port.
-     * Initializes input and output streams for communication.
+     * Initializes input and output streams for communication, and for the binary
+     * protocol exchanges the greeting with the server. Starts the reader thread that
+     * completes pending requests, or for a client created with an engine hands the
+     * connection to one of the engine's selector threads.
+     * <p>
+     * A previous connection is closed first, failing the requests still waiting on it.
+     * The new connection is opened and greeted without holding the write lock, so
+     * {@link #isConnected()} and senders do not wait for it; the greeting must arrive
+     * within the connect timeout.
      */
     public void createSocket() {
+        int connection;
+        synchronized (this.writeLock) {
+            failPending(this.generation, new IOException("Connection to " + this.host + ":" + this.port + " re-created"));
+            connection = ++this.generation;
+            this.broken = true;
+            closeCommandConnection();
+        }
         try {
-            this.socket = new Socket(this.host, this.port);
-            this.out = new PrintWriter(this.socket.getOutputStream(), true);
-            this.in = new BufferedReader(new InputStreamReader(this.socket.getInputStream()));
+            if (this.engine != null) {
+                NioClientEngine.Connection opened = this.engine.connect(this.host, this.port, this.protocol,
+                        CONNECT_TIMEOUT_MILLIS, receiver(connection));
+                synchronized (this.writeLock) {
+                    if (connection != this.generation || !this.running) {
+                        opened.requestClose();
+                        return;
+                    }
+                    this.channel = opened;
+                    this.broken = false;
+                    if (this.eventListener != null) {
+                        sendSubscribe();
+                    }
+                }
+                return;
+            }
+            Socket connected = new Socket();
+            PrintWriter textOut = null;
+            BufferedReader textIn = null;
+            OutputStream dataOut = null;
+            DataInputStream dataIn = null;
+            try {
+                connected.connect(new InetSocketAddress(this.host, this.port), CONNECT_TIMEOUT_MILLIS);
+                if (this.protocol == WireProtocol.BINARY) {
+                    connected.setSoTimeout(CONNECT_TIMEOUT_MILLIS);
+                    dataOut = connected.getOutputStream();
+                    dataIn = new DataInputStream(new BufferedInputStream(connected.getInputStream()));
+                    dataOut.write(new byte[]{BinaryProtocol.MAGIC, BinaryProtocol.VERSION});
+                    dataOut.flush();
+                    if (dataIn.readByte() != BinaryProtocol.MAGIC) {
+                        throw new IOException("Server did not accept the binary protocol");
+                    }
+                    dataIn.readByte();
+                    connected.setSoTimeout(0);
+                } else {
+                    textOut = new PrintWriter(connected.getOutputStream(), true);
+                    textIn = new BufferedReader(new InputStreamReader(connected.getInputStream()));
+                }
+            } catch (IOException e) {
+                connected.close();
+                throw e;
+            }
+            synchronized (this.writeLock) {
+                if (connection != this.generation || !this.running) {
+                    connected.close();
+                    return;
+                }
+                this.socket = connected;
+                this.out = textOut;
+                this.in = textIn;
+                this.binaryOut = dataOut;
+                this.binaryIn = dataIn;
+                this.broken = false;
+                BufferedReader reader = textIn;
+                DataInputStream binaryReader = dataIn;
+                Thread.ofVirtual().name("tcp-client-reader-" + this.port)
+                        .start(() -> readResponses(connection, reader, binaryReader));
+                if (this.eventListener != null) {
+                    sendSubscribe();
+                }
+            }
         } catch (IOException e) {
             System.err.println("Error creating socket: " + e.getMessage());
         }
     }
 
+    /**
+     * Closes the command connection, which ends its reader thread or tells the engine to
+     * drop it. Must be called while holding the write lock.
+     */
+    private void closeCommandConnection() {
+        if (this.channel != null) {
+            this.channel.requestClose();
+            this.channel = null;
+        }
+        if (this.socket != null) {
+            try {
+                this.socket.close();
+            } catch (IOException e) {
+                System.err.println("Error closing connection: " + e.getMessage());
+            }
+            this.socket = null;
+        }
+        this.out = null;
+        this.in = null;
+        this.binaryOut = null;
+        this.binaryIn = null;
+    }
+
+    /**
+     * Creates the handlers through which the engine passes everything the server sends
+     * on one connection to this client.
+     *
+     * @param connection The connection generation the handlers belong to
+     */
+    private NioClientEngine.Receiver receiver(int connection) {
+        return new NioClientEngine.Receiver() {
+            @Override
+            public void onLine(String line) {
+                TCPClient.this.onLine(line);
+            }
+
+            @Override
+            public void onResponse(int response) {
+                onRawResponse(response);
+            }
+
+            @Override
+            public void onEvent(int header, byte[] payload) {
+                onEventFrame(header, payload);
+            }
+
+            @Override
+            public void onClosed(IOException cause) {
+                onConnectionFailed(connection, cause);
+            }
+        };
+    }
+
     /**
      * Reads user input to determine which command to send to the server.
      * Displays a disclaimer about using numeric inputs on first use.
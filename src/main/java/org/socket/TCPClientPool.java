@@ -0,0 +1,614 @@
+package org.socket;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+
+/**
+ * A bounded pool of command connections to one TV.
+ * Connections are created on demand up to a maximum, borrowed with a timeout, and
+ * returned after use. A background task evicts connections that have been idle too long,
+ * validates the rest with a STATUS ping and keeps the pool at its minimum size.
+ * Broken connections are discarded and replaced transparently.
+ * <p>
+ * The pool can also subscribe to the TV's state events on one of its connections, which
+ * keeps serving commands, so a TV needs no connection just for events.
+ * <p>
+ * A pool created without connecting opens nothing until it is first borrowed from or
+ * {@link #connect() connected} explicitly; maintenance and the event subscription start then.
+ * <p>
+ * Maintenance runs on a small scheduler shared by all pools and never blocks it: new
+ * connections and the event subscription are opened on virtual threads, so a TV that
+ * cannot be reached only delays its own pool.
+ */
+public final class TCPClientPool {
+
+    private static final int MAINTENANCE_THREADS = Math.max(2, Runtime.getRuntime().availableProcessors() / 2);
+    private static final AtomicInteger MAINTENANCE_THREAD_COUNT = new AtomicInteger();
+    private static final ScheduledExecutorService MAINTENANCE = Executors.newScheduledThreadPool(MAINTENANCE_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "tcp-client-pool-maintenance-" + MAINTENANCE_THREAD_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+    private static final ExecutorService CONNECTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private static final long VALIDATION_TIMEOUT_MILLIS = 2000;
+
+    private final String host;
+    private final int port;
+    private final WireProtocol protocol;
+    private final int minSize;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long idleTimeoutMillis;
+    private final NioClientEngine engine;
+    private final Semaphore permits;
+    private final BlockingDeque<IdleClient> idleClients = new LinkedBlockingDeque<>();
+    private final AtomicInteger validating = new AtomicInteger();
+    private final AtomicInteger opening = new AtomicInteger();
+    private final AtomicReference<CompletableFuture<Void>> subscribing = new AtomicReference<>();
+    private ScheduledFuture<?> maintenanceTask;
+    private volatile boolean closed = false;
+    private volatile boolean active;
+    private volatile Consumer<StateEvent> eventListener;
+    private volatile TCPClient eventClient;
+    private volatile long subscribedSince = -1;
+
+    /**
+     * Creates a pool and opens its minimum number of connections.
+     *
+     * @param host The hostname or IP address of the TV
+     * @param port The command port of the TV
+     * @param protocol The protocol the pooled clients speak
+     * @param minSize The number of connections kept open while idle
+     * @param maxSize The maximum number of connections borrowed at once
+     * @param borrowTimeoutMillis How long {@link #borrow()} waits for a free connection
+     * @param idleTimeoutMillis How long a connection above the minimum may stay idle
+     */
+    public TCPClientPool(String host, int port, WireProtocol protocol, int minSize, int maxSize,
+                         long borrowTimeoutMillis, long idleTimeoutMillis) {
+        this(host, port, protocol, minSize, maxSize, borrowTimeoutMillis, idleTimeoutMillis, null, true);
+    }
+
+    /**
+     * Creates a pool whose connections may be served by a shared engine instead of a reader
+     * thread each, optionally without opening any connection yet.
+     *
+     * @param host The hostname or IP address of the TV
+     * @param port The command port of the TV
+     * @param protocol The protocol the pooled clients speak
+     * @param minSize The number of connections kept open while idle
+     * @param maxSize The maximum number of connections borrowed at once
+     * @param borrowTimeoutMillis How long {@link #borrow()} waits for a free connection
+     * @param idleTimeoutMillis How long a connection above the minimum may stay idle
+     * @param engine The engine serving the connections, or null for a reader thread per connection
+     * @param connect Whether to open the minimum number of connections now rather than on first use
+     */
+    TCPClientPool(String host, int port, WireProtocol protocol, int minSize, int maxSize,
+                  long borrowTimeoutMillis, long idleTimeoutMillis, NioClientEngine engine, boolean connect) {
+        if (minSize < 0 || maxSize < 1 || minSize > maxSize) {
+            throw new IllegalArgumentException("Invalid pool size: min " + minSize + ", max " + maxSize);
+        }
+        this.host = host;
+        this.port = port;
+        this.protocol = protocol;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.engine = engine;
+        this.permits = new Semaphore(maxSize, true);
+        if (connect) {
+            fillToMinimum().join();
+            activate();
+        }
+    }
+
+    /**
+     * Starts maintenance, which first tops the pool up and restores the event subscription,
+     * unless the pool is already active or closed.
+     */
+    private synchronized void activate() {
+        if (active || closed) {
+            return;
+        }
+        active = true;
+        long period = Math.max(1, idleTimeoutMillis / 2);
+        maintenanceTask = MAINTENANCE.scheduleWithFixedDelay(this::maintain, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    private TCPClient newClient() {
+        return engine != null ? new TCPClient(host, port, protocol, engine) : new TCPClient(host, port, protocol);
+    }
+
+    /**
+     * Borrows a connected client, creating one if none is idle and the pool is not full.
+     * The client must be given back with {@link #release(TCPClient)}.
+     *
+     * @return A connected client
+     * @throws IOException If no connection is free within the borrow timeout,
+     *                     or a new connection cannot be established
+     */
+    public TCPClient borrow() throws IOException {
+        acquire(TimeUnit.MILLISECONDS.toNanos(borrowTimeoutMillis));
+        TCPClient client = pollIdle();
+        return client != null ? client : opened(newClient());
+    }
+
+    /**
+     * Borrows a connected client like {@link #borrow()}, but waits no longer than the given
+     * time in all, neither for a free connection nor for a new one to be opened. A connection
+     * still being opened when the time is up joins the idle connections once it is open.
+     *
+     * @param timeoutNanos How long to wait, in nanoseconds
+     * @return A connected client
+     * @throws IOException If no connection is free or opened in time,
+     *                     or a new connection cannot be established
+     */
+    public TCPClient borrow(long timeoutNanos) throws IOException {
+        long deadline = System.nanoTime() + timeoutNanos;
+        acquire(timeoutNanos);
+        TCPClient client = pollIdle();
+        if (client != null) {
+            return client;
+        }
+        CompletableFuture<TCPClient> connecting = CompletableFuture.supplyAsync(this::newClient, CONNECTOR);
+        try {
+            return opened(connecting.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+        } catch (TimeoutException e) {
+            permits.release();
+            connecting.thenAccept(this::keepIdle);
+            throw new IOException("Timed out connecting to " + host + ":" + port);
+        } catch (InterruptedException e) {
+            permits.release();
+            connecting.thenAccept(this::keepIdle);
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted connecting to " + host + ":" + port);
+        } catch (ExecutionException e) {
+            permits.release();
+            throw new IOException("Could not connect to " + host + ":" + port + ": " + e.getCause());
+        }
+    }
+
+    private void acquire(long timeoutNanos) throws IOException {
+        if (closed) {
+            throw new IOException("Connection pool for " + host + ":" + port + " is closed");
+        }
+        try {
+            if (!permits.tryAcquire(timeoutNanos, TimeUnit.NANOSECONDS)) {
+                throw new IOException("Timed out waiting for a connection to " + host + ":" + port);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted waiting for a connection to " + host + ":" + port);
+        }
+    }
+
+    /**
+     * Takes the most recently used idle connection that is still connected, dropping broken ones.
+     *
+     * @return The connection, or null if none is idle
+     */
+    private TCPClient pollIdle() {
+        IdleClient idle;
+        while ((idle = idleClients.pollFirst()) != null) {
+            if (idle.client.isConnected()) {
+                return idle.client;
+            }
+            idle.client.discard();
+        }
+        return null;
+    }
+
+    /**
+     * Hands out a newly opened connection under the permit already taken for it.
+     */
+    private TCPClient opened(TCPClient client) throws IOException {
+        if (!client.isConnected()) {
+            permits.release();
+            throw new IOException("Could not connect to " + host + ":" + port);
+        }
+        if (!active) {
+            activate();
+        }
+        return client;
+    }
+
+    /**
+     * Opens the minimum number of connections and the event subscription now, if the pool
+     * was created without connecting. Does nothing more for a pool already in use.
+     *
+     * @throws IOException If no connection to the TV can be established
+     */
+    void connect() throws IOException {
+        if (active) {
+            return;
+        }
+        release(borrow());
+        fillToMinimum().join();
+        resubscribe().join();
+    }
+
+    /**
+     * Gives a borrowed client back to the pool. Broken clients are closed instead of reused.
+     *
+     * @param client The client obtained from {@link #borrow()}
+     */
+    public void release(TCPClient client) {
+        if (closed || !client.isConnected()) {
+            client.discard();
+        } else {
+            idleClients.offerFirst(new IdleClient(client, System.currentTimeMillis()));
+        }
+        permits.release();
+    }
+
+    /**
+     * Closes a borrowed client that must not be reused, such as one that stopped answering,
+     * and frees its place in the pool.
+     *
+     * @param client The client obtained from {@link #borrow()}
+     */
+    public void discard(TCPClient client) {
+        client.discard();
+        permits.release();
+    }
+
+    /**
+     * Borrows a connection, sends a command and returns the connection.
+     *
+     * @param command The command to send
+     * @return The server's response, or an error message if no connection was available
+     */
+    public String sendCommand(Commands command) {
+        return sendCommand(TCPServer.DEFAULT_DEVICE, command);
+    }
+
+    /**
+     * Borrows a connection, sends a command to one device of the server and returns the connection.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @return The server's response, or an error message if no connection was available
+     */
+    public String sendCommand(int deviceId, Commands command) {
+        TCPClient client;
+        try {
+            client = borrow();
+        } catch (IOException e) {
+            System.err.println("Error sending command: " + e.getMessage());
+            return "Error" + e.getMessage();
+        }
+        try {
+            return client.sendCommand(deviceId, command);
+        } finally {
+            release(client);
+        }
+    }
+
+    /**
+     * Borrows a connection, sends a command without waiting, and returns the
+     * connection once the response arrives.
+     *
+     * @param command The command to send
+     * @return A future completed with the server's response
+     */
+    public CompletableFuture<String> sendCommandAsync(Commands command) {
+        return sendCommandAsync(TCPServer.DEFAULT_DEVICE, command);
+    }
+
+    /**
+     * Borrows a connection, sends a command to one device of the server without waiting,
+     * and returns the connection once the response arrives.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @return A future completed with the server's response
+     */
+    public CompletableFuture<String> sendCommandAsync(int deviceId, Commands command) {
+        TCPClient client;
+        try {
+            client = borrow();
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        return client.sendCommandAsync(deviceId, command).whenComplete((response, error) -> release(client));
+    }
+
+    /**
+     * Borrows a connection, sends a command to one device of the server without waiting,
+     * and returns the connection once the response arrives. If the response does not arrive
+     * in time, the future fails with a {@link TimeoutException} and the connection is closed
+     * instead of returned, so a connection that stopped answering is neither kept from the
+     * pool until it does nor handed to the next caller.
+     *
+     * @param deviceId The device to address
+     * @param command The command to send
+     * @param timeoutMillis How long to wait for the response, including the wait for a connection,
+     *                      which {@link #borrow(long)} bounds by the same time
+     * @return A future completed with the server's response
+     */
+    public CompletableFuture<String> sendCommandAsync(int deviceId, Commands command, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return CompletableFuture.failedFuture(new TimeoutException("No time left to send " + command));
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        TCPClient client;
+        try {
+            client = borrow(TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+        } catch (IOException e) {
+            return CompletableFuture.failedFuture(System.nanoTime() - deadline >= 0
+                    ? new TimeoutException(e.getMessage()) : e);
+        }
+        long left = deadline - System.nanoTime();
+        if (left <= 0) {
+            release(client);
+            return CompletableFuture.failedFuture(new TimeoutException("No connection free in time to send " + command));
+        }
+        return client.sendCommandAsync(deviceId, command)
+                .orTimeout(left, TimeUnit.NANOSECONDS)
+                .whenComplete((response, error) -> {
+                    if (error instanceof TimeoutException) {
+                        discard(client);
+                    } else {
+                        release(client);
+                    }
+                });
+    }
+
+    /**
+     * Borrows a connection and sends several commands on it as one pipelined batch.
+     *
+     * @param commands The commands to send
+     * @return The responses in order
+     */
+    public List<String> sendCommands(List<Commands> commands) {
+        return sendCommands(TCPServer.DEFAULT_DEVICE, commands);
+    }
+
+    /**
+     * Borrows a connection and sends several commands for one device on it as one pipelined batch.
+     *
+     * @param deviceId The device to address
+     * @param commands The commands to send
+     * @return The responses in order
+     */
+    public List<String> sendCommands(int deviceId, List<Commands> commands) {
+        TCPClient client;
+        try {
+            client = borrow();
+        } catch (IOException e) {
+            System.err.println("Error sending commands: " + e.getMessage());
+            List<String> errors = new ArrayList<>(commands.size());
+            for (int i = 0; i < commands.size(); i++) {
+                errors.add("Error" + e.getMessage());
+            }
+            return errors;
+        }
+        try {
+            return client.sendCommands(deviceId, commands);
+        } finally {
+            release(client);
+        }
+    }
+
+    /**
+     * Subscribes to the TV's state events on one of the pooled connections. That connection
+     * keeps serving commands and is never evicted for being idle. If it breaks, the
+     * subscription moves to another connection; events published in between are missed.
+     *
+     * For a pool not yet in use, the subscription is made with its first connection.
+     *
+     * @param listener Receives every state event, on a client's reader thread
+     */
+    public void subscribe(Consumer<StateEvent> listener) {
+        this.eventListener = listener;
+        if (active) {
+            resubscribe();
+        }
+    }
+
+    /**
+     * Makes sure a connected client carries the event subscription, borrowing one to
+     * subscribe if needed. Runs when the subscribed connection fails and at every
+     * maintenance run, so a subscription lost while the TV was unreachable is restored.
+     * Only one attempt runs at a time, on a virtual thread, so callers never block.
+     *
+     * @return A future completed once the attempt in progress has succeeded or failed
+     */
+    private CompletableFuture<Void> resubscribe() {
+        Consumer<StateEvent> listener = eventListener;
+        TCPClient current = eventClient;
+        if (closed || listener == null || (current != null && current.isConnected())) {
+            return CompletableFuture.completedFuture(null);
+        }
+        CompletableFuture<Void> attempt = new CompletableFuture<>();
+        CompletableFuture<Void> running = subscribing.compareAndExchange(null, attempt);
+        if (running != null) {
+            return running;
+        }
+        CONNECTOR.execute(() -> subscribe(listener, attempt));
+        return attempt;
+    }
+
+    private void subscribe(Consumer<StateEvent> listener, CompletableFuture<Void> attempt) {
+        TCPClient client;
+        try {
+            client = borrow();
+        } catch (IOException e) {
+            System.err.println("Could not subscribe to events of " + host + ":" + port + ": " + e.getMessage());
+            subscribing.set(null);
+            attempt.complete(null);
+            return;
+        }
+        client.subscribe(listener).orTimeout(VALIDATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS).whenComplete((response, error) -> {
+            if (error == null) {
+                client.setDisconnectHandler(() -> {
+                    if (eventClient == client) {
+                        subscribedSince = -1;
+                    }
+                    resubscribe();
+                });
+                eventClient = client;
+                subscribedSince = System.nanoTime();
+                release(client);
+            } else {
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                System.err.println("Could not subscribe to events of " + host + ":" + port + ": " + cause);
+                discard(client);
+            }
+            subscribing.set(null);
+            attempt.complete(null);
+        });
+    }
+
+    /**
+     * Gets the time the current event subscription was established. Every event published
+     * since then has been delivered to the listener, or is still on its way.
+     *
+     * @return The {@link System#nanoTime()} at which the subscription was confirmed,
+     *         or -1 if there is no subscription right now
+     */
+    public long getSubscribedSince() {
+        return subscribedSince;
+    }
+
+    /**
+     * Gets the number of connections currently idle in the pool.
+     *
+     * @return The idle connection count
+     */
+    public int getIdleCount() {
+        return idleClients.size();
+    }
+
+    /**
+     * Closes all idle connections and stops maintenance. Borrowed clients are closed
+     * when they are released.
+     */
+    public void close() {
+        closed = true;
+        subscribedSince = -1;
+        synchronized (this) {
+            if (maintenanceTask != null) {
+                maintenanceTask.cancel(false);
+            }
+        }
+        IdleClient idle;
+        while ((idle = idleClients.pollFirst()) != null) {
+            idle.client.discard();
+        }
+    }
+
+    /**
+     * Evicts idle connections above the minimum, pings the remaining idle connections
+     * with STATUS and replaces those that fail, then tops the pool up to its minimum.
+     * Waits for none of it, so one slow TV does not hold up the other pools' maintenance.
+     */
+    private void maintain() {
+        long now = System.currentTimeMillis();
+        for (IdleClient idle : new ArrayList<>(idleClients)) {
+            if (!idleClients.remove(idle)) {
+                continue; // borrowed in the meantime
+            }
+            boolean surplus = idleClients.size() + validating.get() + opening.get() >= minSize;
+            boolean expired = surplus && now - idle.idleSince > idleTimeoutMillis && idle.client != eventClient;
+            if (!idle.client.isConnected() || expired) {
+                idle.client.discard();
+            } else {
+                validate(idle);
+            }
+        }
+        fillToMinimum();
+        resubscribe();
+    }
+
+    private void validate(IdleClient idle) {
+        validating.incrementAndGet();
+        idle.client.sendCommandAsync(Commands.STATUS)
+                .orTimeout(VALIDATION_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)
+                .whenComplete((response, error) -> {
+                    if (error != null || !idle.client.isConnected()) {
+                        System.err.println("Dropping stale connection to " + host + ":" + port);
+                        idle.client.discard();
+                    } else if (closed || idleClients.size() + borrowedCount() >= maxSize) {
+                        // Borrowers opened replacements while this one was being validated
+                        idle.client.discard();
+                    } else {
+                        idleClients.offerLast(idle);
+                    }
+                    validating.decrementAndGet();
+                });
+    }
+
+    private int borrowedCount() {
+        return maxSize - permits.availablePermits();
+    }
+
+    /**
+     * Opens connections on virtual threads until the pool, counting those still being
+     * opened, holds its minimum.
+     *
+     * @return A future completed once every connection started here is open or has failed
+     */
+    private CompletableFuture<Void> fillToMinimum() {
+        List<CompletableFuture<Void>> started = new ArrayList<>();
+        while (!closed && pooledCount() < minSize && pooledCount() + borrowedCount() < maxSize) {
+            opening.incrementAndGet();
+            started.add(CompletableFuture.runAsync(this::openIdleClient, CONNECTOR));
+        }
+        return CompletableFuture.allOf(started.toArray(new CompletableFuture<?>[0]));
+    }
+
+    private int pooledCount() {
+        return idleClients.size() + validating.get() + opening.get();
+    }
+
+    private void openIdleClient() {
+        try {
+            keepIdle(newClient());
+        } finally {
+            opening.decrementAndGet();
+        }
+    }
+
+    /**
+     * Adds a newly opened connection to the idle connections, unless it failed to connect.
+     */
+    private void keepIdle(TCPClient client) {
+        if (!client.isConnected()) {
+            return;
+        }
+        IdleClient idle = new IdleClient(client, System.currentTimeMillis());
+        idleClients.offerLast(idle);
+        if (closed && idleClients.remove(idle)) {
+            client.discard();
+        }
+    }
+
+    private static final class IdleClient {
+        private final TCPClient client;
+        private final long idleSince;
+
+        IdleClient(TCPClient client, long idleSince) {
+            this.client = client;
+            this.idleSince = idleSince;
+        }
+    }
+}
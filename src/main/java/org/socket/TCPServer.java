@@ -1,36 +1,86 @@
 package org.socket;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import javax.management.JMException;
+import javax.management.ObjectName;
 
 /**
  * A TCP server that simulates a Smart TV device.
  * This server listens for client connections and processes commands to control
  * the TV's power state and channel selection.
+ * <p>
+ * One server can also host many simulated devices behind the same listener. Each device
+ * has its own power and channel state and is addressed by its ID, from 0 up to the
+ * device count; requests without a device ID go to {@link #DEFAULT_DEVICE}.
+ * <p>
+ * Connections are accepted by one thread, unless the server is created with several
+ * acceptors. Then that many listening sockets are bound to the same port with
+ * SO_REUSEPORT, where the operating system supports it, and the kernel spreads incoming
+ * connections over their accept threads, so a storm of reconnecting clients is accepted
+ * on several cores. All acceptors serve the same devices.
+ * <p>
+ * State changes are sent to subscribers of a separate broadcast listener and to command
+ * connections that sent SUBSCRIBE. The broadcast listener can be turned off with
+ * {@link #setBroadcastListenerEnabled(boolean)}.
+ * <p>
+ * Connections can be closed when they receive nothing for too long, when a write to them
+ * makes no progress for too long, or simply after a time, so abandoned clients do not hold
+ * threads and buffers forever. Broadcast subscribers can be sent keepalives, so one that
+ * went away is noticed even while no state changes. All timeouts are off by default; see
+ * {@link #setReadIdleTimeoutMillis(long)}.
+ * <p>
+ * Device state is kept in memory only, unless a state journal is enabled with
+ * {@link #enableStateJournal(Path)}; then every change is logged and a restarted server
+ * resumes with the state its devices had.
  */
 public class TCPServer {
 
+    /** The device that requests without a device ID are addressed to. */
+    public static final int DEFAULT_DEVICE = 0;
+
+    private static final int SUBSCRIBE_REQUEST_TIMEOUT_MILLIS = 200;
+
     private String host;
     private int port;
     private ServerSocket serverSocket;
-    private boolean isOn = false;
-    private int channel = 1;
+    private final List<ServerSocket> extraAcceptors = new ArrayList<>();
+    private final TVState[] devices;
+    private final TVState tvState;
     private ExecutorService threadPool;
+    private final ExecutionMode executionMode;
+    private NioServerEngine nioEngine;
+    private Semaphore connectionPermits;
     private boolean running = true;
     private final List<ClientHandler> connectedClients = Collections.synchronizedList(new ArrayList<>());
     private ServerSocket broadcastServerSocket;
-    private final List<PrintWriter> broadcastClients = Collections.synchronizedList(new ArrayList<>());
+    private final BroadcastHub broadcastHub = new BroadcastHub();
+    private final ServerMetrics metrics;
+    private ObjectName metricsName;
+    private StateJournal stateJournal;
     private int broadcastPort;
+    private volatile long readIdleTimeoutMillis = 0;
+    private volatile long writeIdleTimeoutMillis = 0;
+    private volatile long sessionTimeoutMillis = 0;
 
     /**
      * Constructs a new TCP server with the specified host and port.
@@ -38,17 +88,113 @@ public class TCPServer {
      *
      * @param host The hostname or IP address to bind to
      * @param port The port number to bind to
+     * @param threadPoolSize The number of threads serving command connections
      */
     public TCPServer(String host, int port, int threadPoolSize) {
+        this(host, port, threadPoolSize, ExecutionMode.PLATFORM_POOL);
+    }
+
+    /**
+     * Constructs a new TCP server with the specified host, port and execution mode.
+     * In {@link ExecutionMode#NIO_EVENT_LOOP} the thread count is the number of
+     * selector event loops, in {@link ExecutionMode#BOUNDED_VIRTUAL} it is the number
+     * of connections served at once, and {@link ExecutionMode#VIRTUAL_THREAD} ignores it.
+     *
+     * @param host The hostname or IP address to bind to
+     * @param port The port number to bind to
+     * @param threadPoolSize The number of threads serving command connections
+     * @param executionMode How command connections are served
+     */
+    public TCPServer(String host, int port, int threadPoolSize, ExecutionMode executionMode) {
+        this(host, port, threadPoolSize, executionMode, 1);
+    }
+
+    /**
+     * Constructs a server hosting several simulated devices on one listener.
+     * Connections, threads and event loops are shared by all devices.
+     *
+     * @param host The hostname or IP address to bind to
+     * @param port The port number to bind to
+     * @param threadPoolSize The number of threads serving command connections
+     * @param executionMode How command connections are served
+     * @param deviceCount The number of devices, with IDs from 0 to deviceCount - 1
+     */
+    public TCPServer(String host, int port, int threadPoolSize, ExecutionMode executionMode, int deviceCount) {
+        this(host, port, threadPoolSize, executionMode, deviceCount, 1);
+    }
+
+    /**
+     * Constructs a server that accepts connections on several listening sockets bound to
+     * the same port with SO_REUSEPORT, each with its own accept thread. Where the option
+     * is not supported, a single socket is used.
+     *
+     * @param host The hostname or IP address to bind to
+     * @param port The port number to bind to
+     * @param threadPoolSize The number of threads serving command connections
+     * @param executionMode How command connections are served
+     * @param deviceCount The number of devices, with IDs from 0 to deviceCount - 1
+     * @param acceptorCount The number of listening sockets and accept threads
+     */
+    public TCPServer(String host, int port, int threadPoolSize, ExecutionMode executionMode, int deviceCount,
+                     int acceptorCount) {
+        if (deviceCount < 1) {
+            throw new IllegalArgumentException("Device count must be positive: " + deviceCount);
+        }
+        if (acceptorCount < 1) {
+            throw new IllegalArgumentException("Acceptor count must be positive: " + acceptorCount);
+        }
+        this.devices = new TVState[deviceCount];
+        for (int i = 0; i < deviceCount; i++) {
+            this.devices[i] = new TVState();
+        }
+        this.tvState = this.devices[DEFAULT_DEVICE];
+        TVState[] states = this.devices;
+        this.broadcastHub.setStateSource(deviceCount, deviceId -> states[deviceId].get());
         this.host = host;
         this.port = port;
         this.broadcastPort = port + 10000;
+        this.executionMode = executionMode;
         this.serverSocket = createServerSocket();
         this.broadcastServerSocket = createBroadcastServerSocket();
 
+        boolean reusePort = acceptorCount > 1 && enableReusePort(this.serverSocket);
         bindServerSocket();
+        if (reusePort) {
+            bindExtraAcceptors(acceptorCount - 1);
+        }
         bindBroadcastServerSocket();
-        this.threadPool = Executors.newFixedThreadPool(threadPoolSize);
+        switch (executionMode) {
+            case NIO_EVENT_LOOP:
+                this.nioEngine = new NioServerEngine(this, threadPoolSize);
+                break;
+            case BOUNDED_VIRTUAL:
+                this.connectionPermits = new Semaphore(threadPoolSize);
+                this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+                break;
+            case VIRTUAL_THREAD:
+                this.threadPool = Executors.newVirtualThreadPerTaskExecutor();
+                break;
+            default:
+                this.threadPool = Executors.newFixedThreadPool(threadPoolSize);
+        }
+        this.metrics = new ServerMetrics(this.broadcastHub, this::getExecutorQueueDepth);
+        registerMetrics();
+    }
+
+    /**
+     * Publishes the server's metrics as a JMX MBean named after its host and the port it is
+     * bound to, so servers asked for an ephemeral port, or for the same port on different
+     * hosts, each get their own.
+     */
+    private void registerMetrics() {
+        try {
+            this.metricsName = new ObjectName("org.socket:type=TCPServer,host=" + ObjectName.quote(this.host)
+                    + ",port=" + this.serverSocket.getLocalPort());
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this.metrics, this.metricsName);
+        } catch (JMException e) {
+            System.err.println("Could not register server metrics: " + e.getMessage());
+            this.metricsName = null;
+        }
     }
 
     private ServerSocket createBroadcastServerSocket(){
@@ -73,14 +219,19 @@ public class TCPServer {
         }
     }
     /**
-     * Creates a new server socket.
+     * Creates a new server socket. In NIO mode the socket is backed by a
+     * {@link ServerSocketChannel} so it can be served by the event loops.
      *
      * @return A new ServerSocket instance, or null if creation fails
      */
     private ServerSocket createServerSocket() {
         ServerSocket serverSocket = null;
         try {
-            serverSocket = new ServerSocket();
+            if (this.executionMode == ExecutionMode.NIO_EVENT_LOOP) {
+                serverSocket = ServerSocketChannel.open().socket();
+            } else {
+                serverSocket = new ServerSocket();
+            }
             System.out.println("Server socket created.");
         } catch (IOException e) {
             System.err.println("Could not create socket: " + e.getMessage());
@@ -88,32 +239,209 @@ public class TCPServer {
         return serverSocket;
     }
 
+    /**
+     * Lets further sockets bind to the same port as this one. Must be called before binding.
+     *
+     * @param socket The listening socket
+     * @return false if SO_REUSEPORT is not supported here, in which case nothing changes
+     */
+    private static boolean enableReusePort(ServerSocket socket) {
+        if (socket == null || !socket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT)) {
+            System.err.println("SO_REUSEPORT is not supported, accepting on a single socket");
+            return false;
+        }
+        try {
+            socket.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            return true;
+        } catch (IOException e) {
+            System.err.println("Could not enable SO_REUSEPORT: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Binds further listening sockets to the port the server socket is bound to.
+     * A socket that cannot be bound is left out, so the server accepts on fewer sockets.
+     *
+     * @param count The number of sockets to add
+     */
+    private void bindExtraAcceptors(int count) {
+        if (this.serverSocket == null || !this.serverSocket.isBound()) {
+            return;
+        }
+        for (int i = 0; i < count; i++) {
+            ServerSocket acceptor = createServerSocket();
+            if (acceptor == null || !enableReusePort(acceptor)) {
+                return;
+            }
+            try {
+                acceptor.bind(new InetSocketAddress(this.host, this.serverSocket.getLocalPort()));
+                this.extraAcceptors.add(acceptor);
+            } catch (IOException e) {
+                System.err.println("Could not bind extra acceptor: " + e.getMessage());
+                try {
+                    acceptor.close();
+                } catch (IOException closeError) {
+                    System.err.println("Error closing server socket: " + closeError.getMessage());
+                }
+                return;
+            }
+        }
+        System.out.println("Accepting on " + (this.extraAcceptors.size() + 1) + " sockets bound to port "
+                + this.serverSocket.getLocalPort());
+    }
+
+    /**
+     * Gets the number of listening sockets accepting command connections.
+     *
+     * @return 1, or the number of sockets sharing the port with SO_REUSEPORT
+     */
+    public int getAcceptorCount() {
+        return this.extraAcceptors.size() + 1;
+    }
+
     public void registerClient(ClientHandler client) {
         connectedClients.add(client);
+        metrics.connectionOpened();
     }
 
     public void unregisterClient(ClientHandler client){
-        connectedClients.remove(client);
+        if (connectedClients.remove(client)) {
+            metrics.connectionClosed();
+        }
     }
 
-    public void broadcastStateChange(String message) {
-        synchronized (broadcastClients) {
-            List<PrintWriter> deadClients = new ArrayList<>();
-            for (PrintWriter writer : broadcastClients){
-                try {
-                    writer.println(message);
-                    if (writer.checkError()) {
-                        deadClients.add(writer);
-                    }
-                } catch (Exception e) {
-                    deadClients.add(writer);
-                }
+    /**
+     * Queues a state change for every broadcast subscriber. Never blocks on a subscriber,
+     * so command latency does not depend on how many subscribers there are or how fast they read.
+     * The event is published under the next sequence number, whatever number it carries.
+     *
+     * @param event The state change to deliver
+     */
+    public void broadcastStateChange(StateEvent event) {
+        broadcastHub.publish(event.getDeviceId(), event.getType(), event.getState());
+    }
+
+    /**
+     * Sets what happens to a broadcast subscriber whose outbound queue is full.
+     *
+     * @param policy The policy for slow subscribers
+     */
+    public void setSlowConsumerPolicy(SlowConsumerPolicy policy) {
+        broadcastHub.setSlowConsumerPolicy(policy);
+    }
+
+    /**
+     * Sets how state changes are delivered to broadcast subscribers.
+     * Applies to subscribers that connect afterwards.
+     *
+     * @param mode Every event, or only the latest state for subscribers that fall behind
+     */
+    public void setSubscriptionMode(SubscriptionMode mode) {
+        broadcastHub.setSubscriptionMode(mode);
+    }
+
+    /**
+     * Sets how many events may be queued for each broadcast subscriber.
+     * Applies to subscribers that connect afterwards.
+     *
+     * @param capacity The queue capacity per subscriber
+     */
+    public void setBroadcastQueueCapacity(int capacity) {
+        broadcastHub.setQueueCapacity(capacity);
+    }
+
+    /**
+     * Sets how long a command connection may send nothing before it is closed. A subscribed
+     * connection counts as idle too, so clients that only listen must send requests, such as
+     * the STATUS pings of a {@link TCPClientPool}, more often than this.
+     * Applies to connections accepted afterwards.
+     *
+     * @param timeoutMillis The idle time, or 0 for no limit
+     */
+    public void setReadIdleTimeoutMillis(long timeoutMillis) {
+        this.readIdleTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how long a write to a connection or broadcast subscriber may make no progress
+     * before the connection is closed, which frees a thread blocked on a client that stopped
+     * reading. Applies to connections and subscribers accepted afterwards.
+     *
+     * @param timeoutMillis The stall time, or 0 for no limit
+     */
+    public void setWriteIdleTimeoutMillis(long timeoutMillis) {
+        this.writeIdleTimeoutMillis = timeoutMillis;
+        broadcastHub.setWriteIdleTimeoutMillis(timeoutMillis);
+    }
+
+    /**
+     * Sets how long a command connection may stay open, busy or not, so clients have to
+     * reconnect from time to time. Applies to connections accepted afterwards.
+     *
+     * @param timeoutMillis The session length, or 0 for no limit
+     */
+    public void setSessionTimeoutMillis(long timeoutMillis) {
+        this.sessionTimeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Sets how long a subscriber of the broadcast listener may go without an event before it
+     * is sent a keepalive line, so a subscriber that went away is noticed by the write failing.
+     * Applies to subscribers that connect afterwards.
+     *
+     * @param intervalMillis The keepalive interval, or 0 to send no keepalives
+     */
+    public void setBroadcastKeepaliveMillis(long intervalMillis) {
+        broadcastHub.setKeepaliveMillis(intervalMillis);
+    }
+
+    /**
+     * Turns the separate broadcast listener on the port 10000 above the command port on or off.
+     * Clients can instead subscribe to state events on their command connection with SUBSCRIBE,
+     * so a server whose clients all do that needs a single listening socket.
+     * Must be called before {@link #start()}.
+     *
+     * @param enabled false to close the broadcast listener and release its port
+     */
+    public void setBroadcastListenerEnabled(boolean enabled) {
+        if (enabled) {
+            if (this.broadcastServerSocket == null || this.broadcastServerSocket.isClosed()) {
+                bindBroadcastServerSocket();
             }
-            broadcastClients.removeAll(deadClients);
+            return;
+        }
+        try {
+            if (this.broadcastServerSocket != null) {
+                this.broadcastServerSocket.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error closing broadcast socket: " + e.getMessage());
         }
     }
 
+    /**
+     * Restores the state of every device from the journal in a directory and logs all
+     * further changes there. Must be called before {@link #start()}.
+     *
+     * @param directory The directory holding the journal, created if missing
+     * @throws IOException If the journal cannot be read or created
+     */
+    public void enableStateJournal(Path directory) throws IOException {
+        if (stateJournal != null) {
+            throw new IllegalStateException("State journal already enabled");
+        }
+        stateJournal = StateJournal.open(directory, devices);
+    }
 
+    /**
+     * Gets the number of connected broadcast subscribers.
+     *
+     * @return The subscriber count
+     */
+    public int getBroadcastSubscriberCount() {
+        return broadcastHub.getSubscriberCount();
+    }
 
     /**
      * Binds the server socket to the configured host and port.
@@ -141,20 +469,31 @@ public class TCPServer {
             System.err.println("Server socket is not bound or is closed.");
             return;
         }
-        System.out.println("Smart TV server started. TV is " + (isOn ? "ON" : "OFF"));
+        System.out.println("Smart TV server started. TV is " + (isOn() ? "ON" : "OFF"));
 
-        Thread broadcastThread = new Thread(this::acceptBroadcastConnections);
-        broadcastThread.setDaemon(true);
-        broadcastThread.start();
+        if (this.broadcastServerSocket != null && this.broadcastServerSocket.isBound()
+                && !this.broadcastServerSocket.isClosed()) {
+            Thread broadcastThread = new Thread(this::acceptBroadcastConnections);
+            broadcastThread.setDaemon(true);
+            broadcastThread.start();
+        }
 
         try {
-            while (running) {
-
-                System.out.println("Waiting for client connections...");
-                Socket clientSocket = this.serverSocket.accept();
-                System.out.println("New client connected from " + clientSocket.getInetAddress());
-                threadPool.execute(new ClientHandler(clientSocket, this));
-
+            if (nioEngine != null) {
+                List<ServerSocketChannel> channels = new ArrayList<>();
+                channels.add(this.serverSocket.getChannel());
+                for (ServerSocket acceptor : this.extraAcceptors) {
+                    channels.add(acceptor.getChannel());
+                }
+                nioEngine.run(channels);
+            } else {
+                for (int i = 0; i < this.extraAcceptors.size(); i++) {
+                    ServerSocket acceptor = this.extraAcceptors.get(i);
+                    Thread acceptorThread = new Thread(() -> acceptOn(acceptor), "acceptor-" + getPort() + "-" + i);
+                    acceptorThread.setDaemon(true);
+                    acceptorThread.start();
+                }
+                acceptConnections(this.serverSocket);
             }
         } catch (IOException e) {
             if (running) {
@@ -165,14 +504,79 @@ public class TCPServer {
         }
     }
 
+    /**
+     * Runs the accept loop of an extra acceptor until the server shuts down.
+     *
+     * @param acceptor One of the extra listening sockets
+     */
+    private void acceptOn(ServerSocket acceptor) {
+        try {
+            acceptConnections(acceptor);
+        } catch (IOException e) {
+            if (running) {
+                System.err.println("Error accepting connection: " + e.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Accepts connections on a blocking listening socket and hands each one
+     * to a {@link ClientHandler} on the executor. In bounded mode a permit is
+     * taken before accepting, so excess clients wait in the accept backlog.
+     *
+     * @param listener The listening socket to accept on
+     * @throws IOException If accepting a connection fails
+     */
+    private void acceptConnections(ServerSocket listener) throws IOException {
+        while (running) {
+            if (connectionPermits != null && !acquireConnectionPermit()) {
+                return;
+            }
+            Socket clientSocket;
+            try {
+                clientSocket = listener.accept();
+            } catch (IOException e) {
+                releaseConnectionPermit();
+                throw e;
+            }
+            ClientHandler handler = new ClientHandler(clientSocket, this);
+            if (connectionPermits != null) {
+                threadPool.execute(() -> {
+                    try {
+                        handler.run();
+                    } finally {
+                        releaseConnectionPermit();
+                    }
+                });
+            } else {
+                threadPool.execute(handler);
+            }
+        }
+    }
+
+    private boolean acquireConnectionPermit() {
+        try {
+            connectionPermits.acquire();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    private void releaseConnectionPermit() {
+        if (connectionPermits != null) {
+            connectionPermits.release();
+        }
+    }
+
     private void acceptBroadcastConnections() {
         try {
             while (running) {
                 Socket clientSocket = broadcastServerSocket.accept();
-                PrintWriter writer = new PrintWriter(clientSocket.getOutputStream(), true);
-                synchronized (broadcastClients) {
-                    broadcastClients.add(writer);
-                }
+                long connectedAt = broadcastHub.getLastSequence();
+                Thread.ofVirtual().name("broadcast-subscribe-" + clientSocket.getPort())
+                        .start(() -> subscribe(clientSocket, connectedAt));
             }
         } catch (IOException e){
             if (running) {
@@ -181,6 +585,47 @@ public class TCPServer {
         }
     }
 
+    /**
+     * Reads the request a broadcast subscriber sends on connecting, see
+     * {@link BroadcastHub#resumePoint(String, long)}, and subscribes it with the filter the
+     * request names, if any. Subscribers that send nothing are subscribed after a short wait
+     * and miss no event published meanwhile. A subscriber with an invalid filter is told so
+     * and disconnected.
+     *
+     * @param clientSocket The subscriber's connection
+     * @param connectedAt The last sequence number published when it connected
+     */
+    private void subscribe(Socket clientSocket, long connectedAt) {
+        try {
+            String request = null;
+            clientSocket.setSoTimeout(SUBSCRIBE_REQUEST_TIMEOUT_MILLIS);
+            try {
+                request = new BufferedReader(new InputStreamReader(clientSocket.getInputStream(),
+                        StandardCharsets.US_ASCII)).readLine();
+            } catch (SocketTimeoutException e) {
+                // An older subscriber that only listens
+            }
+            clientSocket.setSoTimeout(0);
+            SubscriptionFilter filter;
+            try {
+                filter = broadcastHub.requestedFilter(request);
+            } catch (IllegalArgumentException e) {
+                clientSocket.getOutputStream().write(("Invalid subscription filter: " + e.getMessage()
+                        + System.lineSeparator()).getBytes(StandardCharsets.UTF_8));
+                clientSocket.close();
+                return;
+            }
+            broadcastHub.subscribe(clientSocket, BroadcastHub.resumePoint(request, connectedAt), filter);
+        } catch (IOException e) {
+            System.err.println("Error subscribing broadcast connection: " + e.getMessage());
+            try {
+                clientSocket.close();
+            } catch (IOException closeError) {
+                System.err.println("Error closing broadcast connection: " + closeError.getMessage());
+            }
+        }
+    }
+
 
 
 public void shutdown() {
@@ -198,10 +643,32 @@ public void shutdown() {
         threadPool.shutdown();
     }
 
+    if (nioEngine != null) {
+        nioEngine.shutdown();
+    }
+
+    broadcastHub.close();
+
+    if (stateJournal != null) {
+        stateJournal.close();
+    }
+
+    if (metricsName != null) {
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsName);
+        } catch (JMException e) {
+            System.err.println("Could not unregister server metrics: " + e.getMessage());
+        }
+        metricsName = null;
+    }
+
     try {
         if (serverSocket != null && !serverSocket.isClosed()){
             serverSocket.close();
         }
+        for (ServerSocket acceptor : extraAcceptors) {
+            acceptor.close();
+        }
     } catch (IOException e) {
         System.err.println("Error closing server socket: " + e.getMessage());
     }
@@ -251,129 +718,157 @@ public void processClientRequest(Socket clientSocket) {
  * @return A string response describing the result of the command
  */
 public String executeCommand(Commands command) {
-    String response;
+    return executeCommand(DEFAULT_DEVICE, command);
+}
+
+/**
+ * Executes a command on one of the hosted devices.
+ *
+ * @param deviceId The device to address
+ * @param command The command to execute
+ * @return A string response describing the result, or an error if the device is not hosted here
+ */
+public String executeCommand(int deviceId, Commands command) {
+    if (!hasDevice(deviceId)) {
+        return CommandCodec.unknownDeviceText();
+    }
+    long state = applyCommand(deviceId, command);
+    if (command == Commands.STATS) {
+        return metrics.getSummary();
+    }
+    if (command == Commands.GET_STATE) {
+        return CommandCodec.stateText(state);
+    }
+    return CommandCodec.responseText(command, state);
+}
+
+/**
+ * Executes a TV command and returns the pre-encoded response line.
+ * Does not allocate unless the command changes state and subscribers must be notified.
+ *
+ * @param command The command to execute
+ * @return The shared response bytes, including the line separator
+ */
+public byte[] executeCommandEncoded(Commands command) {
+    return executeCommandEncoded(DEFAULT_DEVICE, command);
+}
+
+/**
+ * Executes a command on one of the hosted devices and returns the pre-encoded response line.
+ *
+ * @param deviceId The device to address
+ * @param command The command to execute
+ * @return The shared response bytes, including the line separator
+ */
+public byte[] executeCommandEncoded(int deviceId, Commands command) {
+    if (!hasDevice(deviceId)) {
+        return CommandCodec.unknownDevice();
+    }
+    long state = applyCommand(deviceId, command);
+    if (command == Commands.STATS) {
+        return (metrics.getSummary() + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+    if (command == Commands.GET_STATE) {
+        return (CommandCodec.stateText(state) + System.lineSeparator()).getBytes(StandardCharsets.UTF_8);
+    }
+    return CommandCodec.responseBytes(command, state);
+}
+
+/**
+ * Subscribes a command connection that sent SUBSCRIBE to state events.
+ *
+ * @param events The stream that places events between the connection's responses
+ * @param protocol The protocol the connection speaks
+ * @param connection Closes the connection if it cannot keep up with events
+ * @param clientName The client's address, for log messages
+ * @param filter The events the connection wants
+ * @return The subscriber, to be closed when the connection closes
+ */
+BroadcastHub.Subscriber subscribeConnection(EventOutputStream events, WireProtocol protocol,
+                                            Closeable connection, String clientName, SubscriptionFilter filter) {
+    return broadcastHub.subscribe(events, protocol, connection, clientName, filter);
+}
+
+/**
+ * Applies a command to the default device and broadcasts any resulting change.
+ *
+ * @param command The command to apply
+ * @return The resulting state word, see {@link TVState}
+ */
+long applyCommand(Commands command) {
+    return applyCommand(DEFAULT_DEVICE, command);
+}
+
+/**
+ * Applies a command to a device's state, then logs and broadcasts any resulting change.
+ * The change is in the journal before any subscriber hears of it, so a change a client
+ * has seen survives a restart of the server. Switching to the channel that is already
+ * active changes nothing and is not broadcast. The time taken is recorded in the
+ * server's metrics.
+ *
+ * @param deviceId A device hosted by this server, see {@link #hasDevice(int)}
+ * @param command The command to apply
+ * @return The resulting state word, see {@link TVState}
+ */
+long applyCommand(int deviceId, Commands command) {
+    long start = System.nanoTime();
+    long state = updateState(devices[deviceId], command);
+    if (TVState.changed(state)) {
+        if (stateJournal != null) {
+            stateJournal.append(deviceId, state);
+        }
+        broadcastHub.publish(deviceId, changeType(command), state);
+    }
+    metrics.recordCommand(command, System.nanoTime() - start);
+    return state;
+}
+
+private static StateEvent.Type changeType(Commands command) {
     switch (command) {
-        case HELP:
-            return "Available commands: 'HELP(" + Commands.getCommandCode(String.valueOf(Commands.HELP)) + ")', " +
-                    "'TURN ON(" + Commands.getCommandCode(String.valueOf(Commands.TURN_ON)) + ")', " +
-                    "'TURN OFF(" + Commands.getCommandCode(String.valueOf(Commands.TURN_OFF)) + ")', " +
-                    "'STATUS(" + Commands.getCommandCode(String.valueOf(Commands.STATUS)) + ")', " +
-                    "'GET ACTIVE CHANNEL(" + Commands.getCommandCode(String.valueOf(Commands.GET_CHANNEL)) + ")', " +
-                    "'CHANNEL_1(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_1)) + ")', " +
-                    "'CHANNEL_2(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_2)) + ")', " +
-                    "'CHANNEL_3(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_3)) + ")', " +
-                    "'CHANNEL_4(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_4)) + ")', " +
-                    "'CHANNEL_5(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_5)) + ")', " +
-                    "'EXIT(" + Commands.getCommandCode(String.valueOf(Commands.EXIT)) + ")'";
         case TURN_ON:
-            if (!isOn) {
-                isOn = true;
-                response = "TV turned ON";
-                broadcastStateChange("TV_STATE_CHANGE: ON, Channel: " + this.channel);
-                return response;
-            } else {
-                response = "TV is already ON";
-            }
-            return response;
+        case TURN_OFF:
+        case TURN_ON_OR_OFF:
+            return StateEvent.Type.POWER;
+
+        default:
+            return StateEvent.Type.CHANNEL;
+    }
+}
+
+private static long updateState(TVState device, Commands command) {
+    switch (command) {
+        case TURN_ON:
+            return device.turnOn();
 
         case TURN_OFF:
-            if (isOn) {
-                isOn = false;
-                response = "TV turned OFF";
-                broadcastStateChange("TV_STATE_CHANGE: OFF");
-            } else {
-                response = "TV is already OFF";
-            }
-            return response;
+            return device.turnOff();
 
         case TURN_ON_OR_OFF:
-            isOn = !isOn;
-            response = "TV turned " + (isOn ? "ON" : "OFF");
-            broadcastStateChange("TV_STATE_CHANGE: " + (isOn ? "ON" : "OFF") +
-                    ", Channel: " + this.channel);
-            return response;
-
-        case STATUS:
-            return "TV is " + (isOn ? "ON" : "OFF");
+            return device.toggle();
 
         case CHANNEL_UP:
-            if (isOn) {
-                this.channel = (this.channel % 5) + 1;
-                response = "Channel increased to " + this.channel; //Wrap around after channel 5
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
+            return device.channelUp();
 
         case CHANNEL_DOWN:
-            if (isOn) {
-                this.channel = (this.channel == 1) ? 5 : this.channel - 1; // Wrap around to channel 5 if at channel 1
-                response = "Channel decreased to " + this.channel;
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
+            return device.channelDown();
 
         case CHANNEL_1:
-            if (isOn) {
-                this.channel = 1;
-                response = "Switched to Channel 1: NRK";
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
+            return device.setChannel(1);
 
         case CHANNEL_2:
-            if (isOn) {
-                this.channel = 2;
-                response = "Switched to Channel 2: National Geographic";
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
-
+            return device.setChannel(2);
 
         case CHANNEL_3:
-            if (isOn) {
-                this.channel = 3;
-                response = "Switched to Channel 3: Discovery Channel";
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
+            return device.setChannel(3);
 
         case CHANNEL_4:
-            if (isOn) {
-                this.channel = 4;
-                response = "Switched to Channel 4: HBO";
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
+            return device.setChannel(4);
 
         case CHANNEL_5:
-            if (isOn) {
-                this.channel = 5;
-                response = "Switched to Channel 5: TV2";
-                broadcastStateChange("CHANNEL_CHANGE: " + this.channel);
-                return response;
-            } else {
-                response = "TV is OFF. Cannot change channel.";
-            }
-            return response;
-
-        case EXIT:
-            return "Exiting. Goodbye!";
-
+            return device.setChannel(5);
 
         default:
-            return "Unknown command. Try 'HELP'";
+            return device.get();
     }
 }
 
@@ -383,7 +878,109 @@ public String executeCommand(Commands command) {
  * @return true if the TV is on, false if it's off
  */
 public boolean isOn() {
-    return this.isOn;
+    return TVState.isOn(tvState.get());
+}
+
+/**
+ * Reads the packed TV state word without changing it.
+ *
+ * @return The current state word, see {@link TVState}
+ */
+long getState() {
+    return tvState.get();
+}
+
+/**
+ * Reads the packed state word of one device without changing it.
+ *
+ * @param deviceId A device hosted by this server
+ * @return The current state word, see {@link TVState}
+ */
+long getState(int deviceId) {
+    return devices[deviceId].get();
+}
+
+/**
+ * Tells whether a device ID is hosted by this server.
+ *
+ * @param deviceId The device ID
+ * @return true if requests to this device can be served
+ */
+public boolean hasDevice(int deviceId) {
+    return deviceId >= 0 && deviceId < devices.length;
+}
+
+/**
+ * Gets the number of devices hosted by this server.
+ *
+ * @return The device count
+ */
+public int getDeviceCount() {
+    return devices.length;
+}
+
+/**
+ * Gets the active channel of the TV.
+ *
+ * @return The active channel
+ */
+public int getChannel() {
+    return TVState.channel(tvState.get());
+}
+
+/**
+ * Gets the version of the TV state, incremented on every power or channel change.
+ *
+ * @return The current state version
+ */
+public long getStateVersion() {
+    return TVState.version(tvState.get());
+}
+
+/**
+ * Gets the server's runtime metrics, also published over JMX.
+ *
+ * @return The metrics of this server
+ */
+public ServerMetricsMXBean getMetrics() {
+    return metrics;
+}
+
+ServerMetrics metrics() {
+    return metrics;
+}
+
+/**
+ * Starts enforcing the server's timeouts on a command connection.
+ *
+ * @param clientName The client's address, for log messages
+ * @param close Closes the connection; must not block
+ * @return The watchdog, to be told about reads and writes and stopped when the connection closes
+ */
+ConnectionWatchdog watchConnection(String clientName, Runnable close) {
+    ConnectionWatchdog watchdog = new ConnectionWatchdog(clientName, readIdleTimeoutMillis,
+            writeIdleTimeoutMillis, sessionTimeoutMillis, () -> {
+                metrics.connectionTimedOut();
+                close.run();
+            });
+    watchdog.start();
+    return watchdog;
+}
+
+/**
+ * Gets the number of accepted connections waiting to be served: queued for a pool
+ * thread, or not yet registered with an event loop. Virtual threads never queue.
+ *
+ * @return The current queue depth
+ */
+int getExecutorQueueDepth() {
+    if (threadPool instanceof ThreadPoolExecutor) {
+        return ((ThreadPoolExecutor) threadPool).getQueue().size();
+    }
+    if (nioEngine != null) {
+        return nioEngine.getPendingRegistrations();
+    }
+    return 0;
 }
 
 public int getBroadcastPort(){
@@ -1,16 +1,29 @@
 package org.socket;
 
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Represents a TV device with network connectivity.
  * This class stores information about a TV including its name, network address,
  * power state, and current channel.
+ * <p>
+ * The power state and channel are kept as one {@link TVState} word together with the
+ * version the server reported, so a {@link TVManager} can update them from state events
+ * and server reads arriving in any order without ever going back to an older version.
+ * A command that changes the state leaves the known state unconfirmed until it is read
+ * from the server after the command completed, as the change's event may still be on its way.
  */
 public class TV {
     private String name;
     private String host;
     private int port;
-    private boolean isOn = false;
-    private int currentChannel = 1;
+    private int deviceId = TCPServer.DEFAULT_DEVICE;
+    private final AtomicLong state = new AtomicLong(TVState.pack(false, TVState.MIN_CHANNEL, 0));
+    private volatile long stateConfirmedAt = Long.MIN_VALUE;
+    private final AtomicInteger commandsInFlight = new AtomicInteger();
+    private volatile long commandCompletedAt = Long.MIN_VALUE;
+    private final AtomicLong stateReadAt = new AtomicLong(Long.MIN_VALUE);
 
     /**
      * Constructs a new TV with the specified name and network address.
@@ -26,6 +39,19 @@ public class TV {
         this.port = port;
     }
 
+    /**
+     * Constructs a TV hosted as one of several devices by a single server.
+     *
+     * @param name The display name of the TV
+     * @param host The hostname or IP address of the server
+     * @param port The port number of the server
+     * @param deviceId The ID of the TV on that server
+     */
+    public TV(String name, String host, int port, int deviceId){
+        this(name, host, port);
+        this.deviceId = deviceId;
+    }
+
     /**
      * Gets the name of the TV.
      *
@@ -53,13 +79,31 @@ public class TV {
         return port;
     }
 
+    /**
+     * Gets the ID of the TV on its server.
+     *
+     * @return The device ID, {@link TCPServer#DEFAULT_DEVICE} for a server hosting one TV
+     */
+    public int getDeviceId() {
+        return deviceId;
+    }
+
+    /**
+     * Gets the host and port the TV is reached through, shared by all devices of one server.
+     *
+     * @return The endpoint in the format "host:port"
+     */
+    public String getEndpoint() {
+        return host + ":" + port;
+    }
+
     /**
      * Gets the power state of the TV.
      *
      * @return true if the TV is on, false if it's off
      */
     public boolean isOn() {
-        return isOn;
+        return TVState.isOn(state.get());
     }
 
     /**
@@ -68,7 +112,7 @@ public class TV {
      * @param on true to turn the TV on, false to turn it off
      */
     public void setOn(boolean on) {
-        isOn = on;
+        state.getAndUpdate(current -> TVState.pack(on, TVState.channel(current), TVState.version(current)));
     }
 
     /**
@@ -77,7 +121,7 @@ public class TV {
      * @return The currently selected channel
      */
     public int getCurrentChannel() {
-        return currentChannel;
+        return TVState.channel(state.get());
     }
 
     /**
@@ -86,16 +130,102 @@ public class TV {
      * @param channel The channel number to set
      */
     public void setCurrentChannel(int channel) {
-        currentChannel = channel;
+        state.getAndUpdate(current -> TVState.pack(TVState.isOn(current), channel, TVState.version(current)));
+    }
+
+    /**
+     * Gets the last known state of the TV.
+     *
+     * @return The state word, see {@link TVState}
+     */
+    long getState() {
+        return state.get();
+    }
+
+    /**
+     * Gets the time the state was last confirmed by the server.
+     *
+     * @return The {@link System#nanoTime()} of the last update, or {@link Long#MIN_VALUE} if there was none
+     */
+    long getStateConfirmedAt() {
+        return stateConfirmedAt;
+    }
+
+    /**
+     * Records a state reported by the server. A report older than the known state is ignored,
+     * unless the known state can no longer be trusted, such as after the server restarted.
+     *
+     * @param reported The reported state word, see {@link TVState}
+     * @param confirmedAt The {@link System#nanoTime()} at which it was reported
+     * @param replace true to take the report even if its version is older
+     * @return true if the report was taken
+     */
+    boolean updateState(long reported, long confirmedAt, boolean replace) {
+        long update = TVState.pack(TVState.isOn(reported), TVState.channel(reported), TVState.version(reported));
+        long current;
+        do {
+            current = state.get();
+            if (!replace && TVState.version(update) < TVState.version(current)) {
+                return false;
+            }
+        } while (!state.compareAndSet(current, update));
+        stateConfirmedAt = confirmedAt;
+        return true;
+    }
+
+    /**
+     * Records that a command which may change the state was sent.
+     */
+    void commandSent() {
+        commandsInFlight.incrementAndGet();
+    }
+
+    /**
+     * Records that a command which may change the state was answered or failed.
+     *
+     * @param completedAt The {@link System#nanoTime()} at which it completed
+     */
+    void commandCompleted(long completedAt) {
+        commandCompletedAt = completedAt;
+        commandsInFlight.decrementAndGet();
+    }
+
+    /**
+     * Records that the state was read from the server, so it reflects every command
+     * completed before the read was sent.
+     *
+     * @param sentAt The {@link System#nanoTime()} at which the read was sent
+     */
+    void stateRead(long sentAt) {
+        stateReadAt.accumulateAndGet(sentAt, (previous, read) ->
+                previous == Long.MIN_VALUE || read - previous > 0 ? read : previous);
+    }
+
+    /**
+     * Tells whether a command that may have changed the state is in flight, or completed
+     * without the state having been read from the server since.
+     *
+     * @return true if the known state may miss the effect of a command
+     */
+    boolean hasUnconfirmedCommands() {
+        if (commandsInFlight.get() > 0) {
+            return true;
+        }
+        long completedAt = commandCompletedAt;
+        long readAt = stateReadAt.get();
+        return completedAt != Long.MIN_VALUE && (readAt == Long.MIN_VALUE || readAt - completedAt <= 0);
     }
 
     /**
      * Returns a string representation of the TV including its name and network address.
      *
-     * @return A string in the format "name (host:port)"
+     * @return A string in the format "name (host:port)", or "name (host:port #device)" for a hosted device
      */
     @Override
     public String toString() {
+        if (deviceId != TCPServer.DEFAULT_DEVICE) {
+            return name + " (" + host + ":" + port + " #" + deviceId + ")";
+        }
         return name + " (" + host + ":" + port + ")";
     }
 }
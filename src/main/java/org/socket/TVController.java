@@ -15,11 +15,13 @@ public class TVController {
 
     /**
      * Constructs a new TVController with the specified TVManager.
+     * The TVs' state changes are shown on the console while the controller is in use.
      *
      * @param tvManager The TV manager to use for TV operations
      */
     public TVController(TVManager tvManager){
         this.tvManager = tvManager;
+        this.tvManager.setEventListener(TCPClient::printBroadcast);
     }
 
     /**
@@ -93,6 +95,7 @@ public class TVController {
                 "'CHANNEL_3(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_3)) + ")', " +
                 "'CHANNEL_4(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_4)) + ")', " +
                 "\n'CHANNEL_5(" + Commands.getCommandCode(String.valueOf(Commands.CHANNEL_5)) + ")', " +
+                "'STATS(" + Commands.getCommandCode(String.valueOf(Commands.STATS)) + ")', " +
                 "'EXIT(" + Commands.getCommandCode(String.valueOf(Commands.EXIT)) + ")'");
         try {
             int input = Integer.parseInt(this.scanner.nextLine().trim());
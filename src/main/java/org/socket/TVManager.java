@@ -1,38 +1,288 @@
 package org.socket;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Consumer;
 
 /**
  * Manages a collection of TVs and their corresponding TCP client connections.
  * This class serves as a central point for managing TV devices and communicating with them.
+ * Commands to each TV go through a {@link TCPClientPool}, so many threads can control
+ * the same TV at once. State events arrive on one of the pooled connections, which keeps
+ * carrying commands, so an idle TV needs a single connection. TVs hosted as devices of one
+ * server share that server's pool, so thousands of them need only a handful of connections.
+ * <p>
+ * Connections are opened when a TV is first used, so registering a TV costs no round trip
+ * and an unreachable TV delays only its own commands. {@link #addTVs(Collection, long)}
+ * registers a fleet and connects to all its servers concurrently.
+ * <p>
+ * The state events keep every {@link TV} object's power state and channel up to date, so
+ * STATUS and GET_CHANNEL are answered locally while the subscription is live and the state
+ * was confirmed within {@link #setMaxStateAgeMillis(long) the maximum state age}. Otherwise
+ * the state is read from the server with GET_STATE, which also reports its version, and
+ * cached again. A command that changes a TV's state, sent through the manager, keeps the
+ * cached state from answering queries until it has been read from the server after the
+ * command completed, so a query always sees the effect of a command that preceded it.
+ * A caller that must see the server's own answer can force the read.
+ * <p>
+ * By default every connection has a reader thread of its own. A manager created with
+ * {@link #TVManager(int)} instead serves all connections to all TVs from a few selector
+ * threads, for fleets too large for a thread and a blocking socket per connection.
+ * <p>
+ * All methods may be called concurrently. TVs can be added and removed while commands
+ * are in flight; a command already sent to a removed TV still completes.
  */
 public class TVManager {
 
-    private final Map<String, TV> servers = new HashMap<>();
-    private final Map<String, TCPClient> clients = new HashMap<>();
+    private static final int DEFAULT_MIN_CONNECTIONS = 1;
+    private static final int DEFAULT_MAX_CONNECTIONS = 4;
+    private static final long BORROW_TIMEOUT_MILLIS = 5000;
+    private static final long IDLE_TIMEOUT_MILLIS = 60000;
+    private static final long DEFAULT_MAX_STATE_AGE_MILLIS = 5000;
+    private static final int MAX_CONCURRENT_CONNECTS = 64;
+    private static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    /** The tag key for the room a TV is in, see {@link #tagTV(String, String, String)}. */
+    public static final String ROOM = "room";
+    /** The tag key for the floor a TV is on, see {@link #tagTV(String, String, String)}. */
+    public static final String FLOOR = "floor";
+
+    private final TVRegistry registry = new TVRegistry();
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+    private final ExecutorService fleetExecutor = Executors.newVirtualThreadPerTaskExecutor();
+    private volatile long maxStateAgeNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_MAX_STATE_AGE_MILLIS);
+    private volatile Consumer<StateEvent> eventListener;
+    private final NioClientEngine clientEngine;
+
+    /**
+     * Creates a manager whose connections each have a reader thread of their own.
+     */
+    public TVManager() {
+        this.clientEngine = null;
+    }
+
+    /**
+     * Creates a manager whose connections to all TVs are served by a fixed number of
+     * selector threads. Responses and state events are then handled on those threads.
+     *
+     * @param selectorThreads The number of selector threads
+     * @throws IOException If a selector cannot be opened
+     */
+    public TVManager(int selectorThreads) throws IOException {
+        this.clientEngine = new NioClientEngine(selectorThreads);
+    }
 
     /**
-     * Adds a TV to the manager and creates a corresponding TCP client connection.
+     * Adds a TV to the manager with a default-sized connection pool. Nothing is sent over
+     * the network yet: the connections and the subscription to the TV's state events are
+     * opened when the TV is first used.
      *
      * @param tv The TV object to add to the manager
      */
     public void addTV(TV tv) {
-        this.servers.put(tv.getName(), tv);
-        TCPClient client = new TCPClient(tv.getHost(), tv.getPort());
-        this.clients.put(tv.getName(), client);
-        client.startBroadcastListener();
+        addTV(tv, DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Adds a TV to the manager with a connection pool of the given size, to be connected
+     * when the TV is first used. If another TV on the same server was added before,
+     * the new TV shares its pool and subscription and the pool size is ignored.
+     *
+     * @param tv The TV object to add to the manager
+     * @param minConnections The number of command connections kept open while idle
+     * @param maxConnections The maximum number of command connections used at once
+     */
+    public void addTV(TV tv, int minConnections, int maxConnections) {
+        register(tv, minConnections, maxConnections);
+    }
+
+    /**
+     * Adds many TVs at once and connects to their servers concurrently, each server once
+     * however many of its devices are added, then subscribes to their state events.
+     * A TV whose server is not connected by the deadline stays registered and is
+     * connected on first use, like one added with {@link #addTV(TV)}.
+     *
+     * @param tvs The TVs to add
+     * @param timeoutMillis How long to wait for all connections
+     * @return The connection result for every TV, keyed by TV name
+     */
+    public Map<String, FleetResult> addTVs(Collection<TV> tvs, long timeoutMillis) {
+        long start = System.nanoTime();
+        Semaphore connectPermits = new Semaphore(MAX_CONCURRENT_CONNECTS);
+        Map<TCPClientPool, CompletableFuture<Void>> connecting = new HashMap<>();
+        Map<String, CompletableFuture<FleetResult>> pending = new LinkedHashMap<>();
+        for (TV tv : tvs) {
+            TCPClientPool pool = register(tv, DEFAULT_MIN_CONNECTIONS, DEFAULT_MAX_CONNECTIONS).pool;
+            CompletableFuture<Void> connected = connecting.computeIfAbsent(pool, key ->
+                    CompletableFuture.runAsync(() -> connect(key, connectPermits), this.fleetExecutor));
+            String tvName = tv.getName();
+            pending.put(tvName, connected.handle((ignored, error) -> {
+                long latency = System.nanoTime() - start;
+                if (error == null) {
+                    return new FleetResult(tvName, FleetResult.Outcome.OK, "Connected", latency);
+                }
+                Throwable cause = error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause() : error;
+                return new FleetResult(tvName, FleetResult.Outcome.FAILED, cause.getMessage(), latency);
+            }));
+        }
+        return collect(pending, start, timeoutMillis);
+    }
+
+    /**
+     * Connects a pool once one of the permits is free, so a large fleet does not open
+     * all its connections at once.
+     */
+    private static void connect(TCPClientPool pool, Semaphore connectPermits) {
+        try {
+            connectPermits.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CompletionException(new IOException("Interrupted waiting to connect"));
+        }
+        try {
+            pool.connect();
+        } catch (IOException e) {
+            throw new CompletionException(e);
+        } finally {
+            connectPermits.release();
+        }
+    }
+
+    private Endpoint register(TV tv, int minConnections, int maxConnections) {
+        Endpoint endpoint = this.endpoints.compute(tv.getEndpoint(), (key, existing) -> {
+            Endpoint shared = existing != null ? existing
+                    : new Endpoint(tv, minConnections, maxConnections, this.clientEngine, this::notifyEventListener);
+            shared.tvCount++;
+            shared.devices.put(tv.getDeviceId(), tv);
+            return shared;
+        });
+        TVRegistry.Entry replaced = this.registry.add(tv, endpoint.pool);
+        if (replaced != null) {
+            releaseEndpoint(replaced.getTV());
+        }
+        return endpoint;
+    }
+
+    /**
+     * Removes a TV. Commands already sent to it still complete. The connections to its
+     * server are closed once no other TV on that server is left.
+     *
+     * @param tvName The name of the TV
+     * @return true if the TV was registered
+     */
+    public boolean removeTV(String tvName) {
+        TVRegistry.Entry removed = this.registry.remove(tvName);
+        if (removed == null) {
+            return false;
+        }
+        releaseEndpoint(removed.getTV());
+        return true;
+    }
+
+    /**
+     * Gets the number of registered TVs.
+     *
+     * @return The TV count
+     */
+    public int getTVCount() {
+        return this.registry.size();
+    }
+
+    /**
+     * Gets a registered TV, whose state is kept up to date from the server's state events.
+     *
+     * @param tvName The name of the TV
+     * @return The TV, or null if no TV has that name
+     */
+    public TV getTV(String tvName) {
+        TVRegistry.Entry entry = this.registry.get(tvName);
+        return entry != null ? entry.getTV() : null;
     }
 
     /**
-     * Retrieves the list of all TV names registered in the manager.
+     * Sets how long a TV's state may go unconfirmed by the server before queries read it
+     * from the server again. Zero sends every query to the server.
+     *
+     * @param maxStateAgeMillis The maximum age in milliseconds
+     */
+    public void setMaxStateAgeMillis(long maxStateAgeMillis) {
+        this.maxStateAgeNanos = TimeUnit.MILLISECONDS.toNanos(maxStateAgeMillis);
+    }
+
+    /**
+     * Sets a listener for the state events of all TVs, such as a console showing them.
+     * It is called after the TV's state was updated, on the thread that received the event,
+     * which may be a selector thread serving many connections, so it must not block.
+     *
+     * @param listener The listener, or null for none
+     */
+    public void setEventListener(Consumer<StateEvent> listener) {
+        this.eventListener = listener;
+    }
+
+    /**
+     * Closes the connections to all TVs and stops the manager's threads.
+     * Commands still in flight fail.
+     */
+    public void shutdown() {
+        for (String endpointKey : this.endpoints.keySet()) {
+            Endpoint endpoint = this.endpoints.remove(endpointKey);
+            if (endpoint != null) {
+                endpoint.close();
+            }
+        }
+        this.fleetExecutor.shutdown();
+        if (this.clientEngine != null) {
+            this.clientEngine.shutdown();
+        }
+    }
+
+    private void notifyEventListener(StateEvent event) {
+        Consumer<StateEvent> listener = this.eventListener;
+        if (listener != null) {
+            listener.accept(event);
+        }
+    }
+
+    private void releaseEndpoint(TV tv) {
+        Endpoint[] unused = new Endpoint[1];
+        this.endpoints.computeIfPresent(tv.getEndpoint(), (key, endpoint) -> {
+            endpoint.devices.remove(tv.getDeviceId(), tv);
+            if (--endpoint.tvCount > 0) {
+                return endpoint;
+            }
+            unused[0] = endpoint;
+            return null;
+        });
+        if (unused[0] != null) {
+            unused[0].close();
+        }
+    }
+
+    /**
+     * Retrieves the names of all TVs registered in the manager, sorted.
+     * The list is immutable and only rebuilt after TVs were added or removed,
+     * so calling this repeatedly is cheap.
      *
      * @return A list of TV names
      */
         public List<String> getTCPServerNames(){
-            return new ArrayList<>(this.servers.keySet());
+            return this.registry.names();
         }
 
     /**
@@ -43,14 +293,390 @@ public class TVManager {
      * @return The response from the TV server or an error message if the client doesn't exist
      */
         public String sendCommandToServer(String serverName, Commands command){
-            TCPClient client = this.clients.get(serverName);
+            return sendCommandToServer(serverName, command, false);
+        }
+
+    /**
+     * Sends a command to a specific TV server, or answers a STATUS or GET_CHANNEL query
+     * from the TV's cached state if it is recent enough.
+     *
+     * @param serverName The name of the TV server to send the command to
+     * @param command The command to send
+     * @param forceServerRead true to send queries to the server even if the cached state is recent
+     * @return The response from the TV server or an error message if the client doesn't exist
+     */
+        public String sendCommandToServer(String serverName, Commands command, boolean forceServerRead){
+            TVRegistry.Entry client = this.registry.get(serverName);
             String returnValue;
-            if (client != null) {
-                returnValue = client.sendCommand(command);
-            } else {
+            if (client == null) {
                 returnValue = "No client found for server: " + serverName;
+            } else if (!isStateQuery(command)) {
+                returnValue = send(client, command);
+            } else if (!forceServerRead && isFresh(client)) {
+                returnValue = CommandCodec.responseText(command, client.getTV().getState());
+            } else {
+                long sentAt = System.nanoTime();
+                returnValue = answerFromServerState(client, command, sentAt,
+                        client.getPool().sendCommand(client.getTV().getDeviceId(), Commands.GET_STATE));
+                if (returnValue == null) {
+                    returnValue = client.getPool().sendCommand(client.getTV().getDeviceId(), command);
+                }
             }
             return returnValue;
         }
-    }
 
+    /**
+     * Sends a command that is not a state query. One that may change the TV's state leaves
+     * its cached state unconfirmed until the state is read from the server again.
+     */
+        private static String send(TVRegistry.Entry client, Commands command){
+            TV tv = client.getTV();
+            if (!changesState(command)) {
+                return client.getPool().sendCommand(tv.getDeviceId(), command);
+            }
+            tv.commandSent();
+            try {
+                return client.getPool().sendCommand(tv.getDeviceId(), command);
+            } finally {
+                tv.commandCompleted(System.nanoTime());
+            }
+        }
+
+    /**
+     * Sends a command to a specific TV server without waiting for the response.
+     * Safe to call from many threads at once.
+     *
+     * @param serverName The name of the TV server to send the command to
+     * @param command The command to send
+     * @return A future completed with the response, or with an error message if the client doesn't exist
+     */
+        public CompletableFuture<String> sendCommandToServerAsync(String serverName, Commands command){
+            TVRegistry.Entry client = this.registry.get(serverName);
+            if (client == null) {
+                return CompletableFuture.completedFuture("No client found for server: " + serverName);
+            }
+            return sendAsync(client, command, NO_DEADLINE);
+        }
+
+    /**
+     * Sends a command without waiting, answering a state query from the cache if it is recent
+     * enough and reading the state with GET_STATE otherwise. A request still unanswered at the
+     * deadline fails with a {@link TimeoutException} and its connection is closed.
+     */
+        private CompletableFuture<String> sendAsync(TVRegistry.Entry client, Commands command, long deadline){
+            TCPClientPool pool = client.getPool();
+            int deviceId = client.getTV().getDeviceId();
+            if (!isStateQuery(command)) {
+                if (!changesState(command)) {
+                    return sendAsync(pool, deviceId, command, deadline);
+                }
+                TV tv = client.getTV();
+                tv.commandSent();
+                return sendAsync(pool, deviceId, command, deadline)
+                        .whenComplete((response, error) -> tv.commandCompleted(System.nanoTime()));
+            }
+            if (isFresh(client)) {
+                return CompletableFuture.completedFuture(CommandCodec.responseText(command, client.getTV().getState()));
+            }
+            long sentAt = System.nanoTime();
+            return sendAsync(pool, deviceId, Commands.GET_STATE, deadline).thenCompose(response -> {
+                String answer = answerFromServerState(client, command, sentAt, response);
+                if (answer != null) {
+                    return CompletableFuture.completedFuture(answer);
+                }
+                // The response may arrive on a selector thread, which must not wait to borrow a connection
+                return CompletableFuture.supplyAsync(() -> sendAsync(pool, deviceId, command, deadline), this.fleetExecutor)
+                        .thenCompose(fallback -> fallback);
+            });
+        }
+
+        private static CompletableFuture<String> sendAsync(TCPClientPool pool, int deviceId, Commands command, long deadline){
+            if (deadline == NO_DEADLINE) {
+                return pool.sendCommandAsync(deviceId, command);
+            }
+            return pool.sendCommandAsync(deviceId, command, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+        }
+
+        private static boolean isStateQuery(Commands command){
+            return command == Commands.STATUS || command == Commands.GET_CHANNEL;
+        }
+
+        private static boolean changesState(Commands command){
+            switch (command) {
+                case TURN_ON:
+                case TURN_OFF:
+                case TURN_ON_OR_OFF:
+                case CHANNEL_UP:
+                case CHANNEL_DOWN:
+                case CHANNEL_1:
+                case CHANNEL_2:
+                case CHANNEL_3:
+                case CHANNEL_4:
+                case CHANNEL_5:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+
+    /**
+     * Tells whether a TV's cached state can answer queries: the state was confirmed recently,
+     * and while the current event subscription was live, so no change since then was missed,
+     * and no command sent through the manager may have changed it since.
+     */
+        private boolean isFresh(TVRegistry.Entry client){
+            TV tv = client.getTV();
+            return !tv.hasUnconfirmedCommands() && confirmedSinceSubscribing(tv, client.getPool())
+                    && System.nanoTime() - tv.getStateConfirmedAt() <= this.maxStateAgeNanos;
+        }
+
+    /**
+     * Caches the state read with GET_STATE and answers a query from it. The state reflects
+     * every command that completed before the read was sent.
+     *
+     * @return The answer, or null if the response is not a state, as from a server without GET_STATE
+     */
+        private static String answerFromServerState(TVRegistry.Entry client, Commands command, long sentAt,
+                                                    String response){
+            long state = CommandCodec.parseStateText(response);
+            if (state < 0) {
+                return null;
+            }
+            long now = System.nanoTime();
+            TV tv = client.getTV();
+            tv.updateState(state, now, !confirmedSinceSubscribing(tv, client.getPool()));
+            tv.stateRead(sentAt);
+            return CommandCodec.responseText(command, state);
+        }
+
+    /**
+     * Tells whether a TV's state was last confirmed under the pool's current subscription.
+     * A state from before that, such as from before a server restart, may carry a version
+     * the server no longer knows, so a newer report replaces it whatever its version.
+     */
+        private static boolean confirmedSinceSubscribing(TV tv, TCPClientPool pool){
+            long subscribedSince = pool.getSubscribedSince();
+            long confirmedAt = tv.getStateConfirmedAt();
+            return subscribedSince >= 0 && confirmedAt != Long.MIN_VALUE && confirmedAt - subscribedSince >= 0;
+        }
+
+    /**
+     * Sends several commands to a specific TV server as one pipelined batch.
+     *
+     * @param serverName The name of the TV server to send the commands to
+     * @param commands The commands to send, in order
+     * @return The responses in the same order, or a single error message if the client doesn't exist
+     */
+        public List<String> sendCommandsToServer(String serverName, List<Commands> commands){
+            TVRegistry.Entry client = this.registry.get(serverName);
+            if (client == null) {
+                return List.of("No client found for server: " + serverName);
+            }
+            TV tv = client.getTV();
+            if (commands.stream().noneMatch(TVManager::changesState)) {
+                return client.getPool().sendCommands(tv.getDeviceId(), commands);
+            }
+            tv.commandSent();
+            try {
+                return client.getPool().sendCommands(tv.getDeviceId(), commands);
+            } finally {
+                tv.commandCompleted(System.nanoTime());
+            }
+        }
+
+    /**
+     * Adds a TV to a named group, such as a room or a floor, creating the group if needed.
+     *
+     * @param group The name of the group
+     * @param tvName The name of a registered TV
+     */
+        public void addTVToGroup(String group, String tvName){
+            this.registry.addToGroup(tvName, group);
+        }
+
+    /**
+     * Tags a TV, for example with its room or floor. A TV has one value per tag key,
+     * so tagging it with a new room moves it out of the old one.
+     *
+     * @param tvName The name of a registered TV
+     * @param key The tag key, such as {@link #ROOM} or {@link #FLOOR}
+     * @param value The tag value, such as "kitchen" or "2"
+     * @return false if no TV has that name
+     */
+        public boolean tagTV(String tvName, String key, String value){
+            return this.registry.tag(tvName, key, value);
+        }
+
+    /**
+     * Gets the TVs with a tag, as a read-only view that reflects later changes.
+     *
+     * @param key The tag key
+     * @param value The tag value
+     * @return The names of the tagged TVs
+     */
+        public Set<String> getTVsWithTag(String key, String value){
+            return this.registry.tagged(key, value);
+        }
+
+    /**
+     * Gets the TVs in a group, as a read-only view that reflects later changes.
+     *
+     * @param group The name of the group
+     * @return The names of the group's TVs
+     */
+        public Set<String> getTVsInGroup(String group){
+            return this.registry.group(group);
+        }
+
+    /**
+     * Sends a command to every registered TV at once and waits for all of them.
+     *
+     * @param command The command to send
+     * @param perTvTimeoutMillis How long each TV may take to answer
+     * @param deadlineMillis How long the whole operation may take
+     * @return The result for every TV, keyed by TV name
+     */
+        public Map<String, FleetResult> sendCommandToFleet(Commands command, long perTvTimeoutMillis, long deadlineMillis){
+            long start = System.nanoTime();
+            Map<String, CompletableFuture<FleetResult>> pending = new LinkedHashMap<>();
+            for (TVRegistry.Entry entry : this.registry.entries()) {
+                pending.put(entry.getTV().getName(), dispatch(entry, command, perTvTimeoutMillis));
+            }
+            return collect(pending, start, deadlineMillis);
+        }
+
+    /**
+     * Sends a command to every TV in a group at once and waits for all of them.
+     *
+     * @param group The name of the group
+     * @param command The command to send
+     * @param perTvTimeoutMillis How long each TV may take to answer
+     * @param deadlineMillis How long the whole operation may take
+     * @return The result for every TV in the group, keyed by TV name; empty if the group doesn't exist
+     */
+        public Map<String, FleetResult> sendCommandToGroup(String group, Commands command,
+                                                           long perTvTimeoutMillis, long deadlineMillis){
+            return sendCommandToAll(this.registry.group(group), command, perTvTimeoutMillis, deadlineMillis);
+        }
+
+    /**
+     * Sends a command to every TV with a tag at once, such as every TV on a floor,
+     * and waits for all of them.
+     *
+     * @param key The tag key
+     * @param value The tag value
+     * @param command The command to send
+     * @param perTvTimeoutMillis How long each TV may take to answer
+     * @param deadlineMillis How long the whole operation may take
+     * @return The result for every tagged TV, keyed by TV name
+     */
+        public Map<String, FleetResult> sendCommandToTag(String key, String value, Commands command,
+                                                         long perTvTimeoutMillis, long deadlineMillis){
+            return sendCommandToAll(this.registry.tagged(key, value), command, perTvTimeoutMillis, deadlineMillis);
+        }
+
+    /**
+     * Dispatches a command to all given TVs concurrently, then collects the results
+     * until the overall deadline. TVs that have not answered by then are reported as timed out,
+     * so the operation takes as long as the slowest TV rather than the sum of all of them.
+     */
+        private Map<String, FleetResult> sendCommandToAll(Collection<String> tvNames, Commands command,
+                                                          long perTvTimeoutMillis, long deadlineMillis){
+            long start = System.nanoTime();
+            Map<String, CompletableFuture<FleetResult>> pending = new LinkedHashMap<>();
+            for (String tvName : tvNames) {
+                TVRegistry.Entry entry = this.registry.get(tvName);
+                pending.put(tvName, entry != null ? dispatch(entry, command, perTvTimeoutMillis)
+                        : CompletableFuture.completedFuture(new FleetResult(tvName, FleetResult.Outcome.FAILED,
+                                "No client found for server: " + tvName, 0)));
+            }
+            return collect(pending, start, deadlineMillis);
+        }
+
+        private Map<String, FleetResult> collect(Map<String, CompletableFuture<FleetResult>> pending,
+                                                 long start, long deadlineMillis){
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(deadlineMillis);
+
+            Map<String, FleetResult> results = new LinkedHashMap<>();
+            for (Map.Entry<String, CompletableFuture<FleetResult>> entry : pending.entrySet()) {
+                FleetResult result;
+                try {
+                    result = entry.getValue().get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    result = new FleetResult(entry.getKey(), FleetResult.Outcome.TIMED_OUT,
+                            "Overall deadline exceeded", System.nanoTime() - start);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    result = new FleetResult(entry.getKey(), FleetResult.Outcome.FAILED,
+                            "Interrupted", System.nanoTime() - start);
+                } catch (ExecutionException e) {
+                    result = new FleetResult(entry.getKey(), FleetResult.Outcome.FAILED,
+                            e.getCause().getMessage(), System.nanoTime() - start);
+                }
+                results.put(entry.getKey(), result);
+            }
+            return results;
+        }
+
+        private CompletableFuture<FleetResult> dispatch(TVRegistry.Entry entry, Commands command, long timeoutMillis){
+            long start = System.nanoTime();
+            String tvName = entry.getTV().getName();
+            if (isStateQuery(command) && isFresh(entry)) {
+                return CompletableFuture.completedFuture(new FleetResult(tvName, FleetResult.Outcome.OK,
+                        CommandCodec.responseText(command, entry.getTV().getState()), System.nanoTime() - start));
+            }
+            // Borrowing may block on a busy pool or a new connection, so it runs off the caller's thread.
+            // The send gives up at the same deadline, closing its connection rather than leaving it
+            // borrowed until an answer that may never come.
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            return CompletableFuture.supplyAsync(() -> sendAsync(entry, command, deadline), this.fleetExecutor)
+                    .thenCompose(response -> response)
+                    .orTimeout(timeoutMillis, TimeUnit.MILLISECONDS)
+                    .handle((response, error) -> {
+                        long latency = System.nanoTime() - start;
+                        if (error == null) {
+                            return new FleetResult(tvName, FleetResult.Outcome.OK, response, latency);
+                        }
+                        Throwable cause = error instanceof CompletionException && error.getCause() != null
+                                ? error.getCause() : error;
+                        if (cause instanceof TimeoutException) {
+                            return new FleetResult(tvName, FleetResult.Outcome.TIMED_OUT,
+                                    "No response within " + timeoutMillis + " ms", latency);
+                        }
+                        return new FleetResult(tvName, FleetResult.Outcome.FAILED, cause.getMessage(), latency);
+                    });
+        }
+
+    /**
+     * The connection pool shared by all TVs on one server, subscribed to the server's state events,
+     * which update the TVs by device ID and then go to the manager's event listener, if any.
+     * The TV count and devices are only changed inside
+     * {@code endpoints.compute}, which serialises them per server.
+     */
+    private static final class Endpoint {
+        private final TCPClientPool pool;
+        private final Map<Integer, TV> devices = new ConcurrentHashMap<>();
+        private final Consumer<StateEvent> listener;
+        private int tvCount = 0;
+
+        Endpoint(TV tv, int minConnections, int maxConnections, NioClientEngine engine,
+                 Consumer<StateEvent> listener) {
+            this.listener = listener;
+            this.pool = new TCPClientPool(tv.getHost(), tv.getPort(), WireProtocol.TEXT,
+                    minConnections, maxConnections, BORROW_TIMEOUT_MILLIS, IDLE_TIMEOUT_MILLIS, engine, false);
+            this.pool.subscribe(this::onEvent);
+        }
+
+        private void onEvent(StateEvent event) {
+            TV tv = this.devices.get(event.getDeviceId());
+            if (tv != null) {
+                tv.updateState(event.getState(), System.nanoTime(), !confirmedSinceSubscribing(tv, this.pool));
+            }
+            this.listener.accept(event);
+        }
+
+        void close() {
+            this.pool.close();
+        }
+    }
+    }
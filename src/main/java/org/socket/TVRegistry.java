@@ -0,0 +1,247 @@
+package org.socket;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Concurrent registry of the TVs known to a {@link TVManager}, sized for very large fleets.
+ * <p>
+ * Lookups by name never lock: the registry is a {@link ConcurrentHashMap}, whose bins
+ * are locked individually on update, so TVs can be added and removed while commands
+ * to other TVs are in flight. TVs can be labelled with tags such as room or floor, where
+ * each tag key holds one value per TV, and with any number of groups. Both are indexed,
+ * so finding the members of a room does not scan the fleet. Member sets and the set of
+ * entries are returned as live views that are iterated without copying.
+ */
+class TVRegistry {
+
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private final Map<String, Set<String>> index = new ConcurrentHashMap<>();
+    private final AtomicLong version = new AtomicLong();
+    private volatile NameSnapshot nameSnapshot = new NameSnapshot(0, List.of());
+
+    /**
+     * A registered TV and the pool its commands go through.
+     */
+    static final class Entry {
+        private final TV tv;
+        private final TCPClientPool pool;
+        private final Map<String, String> tags = new ConcurrentHashMap<>();
+        private final Set<String> groups = ConcurrentHashMap.newKeySet();
+
+        Entry(TV tv, TCPClientPool pool) {
+            this.tv = tv;
+            this.pool = pool;
+        }
+
+        TV getTV() {
+            return tv;
+        }
+
+        TCPClientPool getPool() {
+            return pool;
+        }
+    }
+
+    /**
+     * Gets a TV by name.
+     *
+     * @param name The TV's name
+     * @return The entry, or null if no TV has that name
+     */
+    Entry get(String name) {
+        return entries.get(name);
+    }
+
+    /**
+     * Registers a TV, replacing any TV with the same name.
+     *
+     * @param tv The TV
+     * @param pool The pool its commands go through
+     * @return The replaced entry, or null
+     */
+    Entry add(TV tv, TCPClientPool pool) {
+        Entry previous = entries.put(tv.getName(), new Entry(tv, pool));
+        if (previous != null) {
+            unindex(previous);
+        }
+        version.incrementAndGet();
+        return previous;
+    }
+
+    /**
+     * Removes a TV and all its tags and group memberships.
+     *
+     * @param name The TV's name
+     * @return The removed entry, or null if no TV has that name
+     */
+    Entry remove(String name) {
+        Entry removed = entries.remove(name);
+        if (removed != null) {
+            unindex(removed);
+            version.incrementAndGet();
+        }
+        return removed;
+    }
+
+    /**
+     * Sets a tag such as room or floor, replacing the TV's previous value for that key.
+     *
+     * @param name The TV's name
+     * @param key The tag key, e.g. "room"
+     * @param value The tag value, e.g. "kitchen"
+     * @return false if no TV has that name
+     */
+    boolean tag(String name, String key, String value) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entries.get(name) != entry) {
+                return false; // removed concurrently
+            }
+            String previous = entry.tags.put(key, value);
+            if (previous != null) {
+                removeFromIndex(tagLabel(key, previous), name);
+            }
+            addToIndex(tagLabel(key, value), name);
+        }
+        return true;
+    }
+
+    /**
+     * Adds a TV to a group. A TV may belong to any number of groups.
+     *
+     * @param name The TV's name
+     * @param group The group name
+     * @return false if no TV has that name
+     */
+    boolean addToGroup(String name, String group) {
+        Entry entry = entries.get(name);
+        if (entry == null) {
+            return false;
+        }
+        synchronized (entry) {
+            if (entries.get(name) != entry) {
+                return false; // removed concurrently
+            }
+            entry.groups.add(group);
+            addToIndex(groupLabel(group), name);
+        }
+        return true;
+    }
+
+    /**
+     * Gets the names of the TVs with a tag, as a live read-only view.
+     *
+     * @param key The tag key
+     * @param value The tag value
+     * @return The member names
+     */
+    Set<String> tagged(String key, String value) {
+        return members(tagLabel(key, value));
+    }
+
+    /**
+     * Gets the names of the TVs in a group, as a live read-only view.
+     *
+     * @param group The group name
+     * @return The member names
+     */
+    Set<String> group(String group) {
+        return members(groupLabel(group));
+    }
+
+    /**
+     * Gets all registered TVs as a live read-only view. Iteration is weakly consistent:
+     * it never fails because of concurrent changes and copies nothing.
+     *
+     * @return The registered entries
+     */
+    Collection<Entry> entries() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the names of all TVs in sorted order. The list is built once per change of
+     * the registry and shared by all callers until the next change.
+     *
+     * @return An immutable sorted list of names
+     */
+    List<String> names() {
+        NameSnapshot snapshot = nameSnapshot;
+        long current = version.get();
+        if (snapshot.version == current) {
+            return snapshot.names;
+        }
+        List<String> names = new ArrayList<>(entries.keySet());
+        Collections.sort(names);
+        snapshot = new NameSnapshot(current, List.copyOf(names));
+        nameSnapshot = snapshot;
+        return snapshot.names;
+    }
+
+    private Set<String> members(String label) {
+        return Collections.unmodifiableSet(indexSet(label));
+    }
+
+    /**
+     * Gets the member set of a label, creating it if needed. Sets are never removed,
+     * even when empty, so views handed out earlier stay live.
+     */
+    private Set<String> indexSet(String label) {
+        return index.computeIfAbsent(label, key -> ConcurrentHashMap.newKeySet());
+    }
+
+    private void unindex(Entry entry) {
+        String name = entry.tv.getName();
+        synchronized (entry) {
+            for (Map.Entry<String, String> tag : entry.tags.entrySet()) {
+                removeFromIndex(tagLabel(tag.getKey(), tag.getValue()), name);
+            }
+            for (String group : entry.groups) {
+                removeFromIndex(groupLabel(group), name);
+            }
+        }
+    }
+
+    private void addToIndex(String label, String name) {
+        indexSet(label).add(name);
+    }
+
+    private void removeFromIndex(String label, String name) {
+        Set<String> members = index.get(label);
+        if (members != null) {
+            members.remove(name);
+        }
+    }
+
+    private static String tagLabel(String key, String value) {
+        return "tag:" + key + "=" + value;
+    }
+
+    private static String groupLabel(String group) {
+        return "group:" + group;
+    }
+
+    private static final class NameSnapshot {
+        private final long version;
+        private final List<String> names;
+
+        NameSnapshot(long version, List<String> names) {
+            this.version = version;
+            this.names = names;
+        }
+    }
+}
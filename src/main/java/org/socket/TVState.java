@@ -0,0 +1,193 @@
+package org.socket;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free power and channel state of a simulated TV.
+ * The state is packed into a single atomically updated word together with a
+ * version counter that is incremented on every change, so readers always see a
+ * consistent power/channel pair and writers never lose updates.
+ * <p>
+ * Word layout: bits 0-7 channel, bit 8 power, bits 16-63 version.
+ * Update methods return the resulting word, with {@link #changed(long)} telling
+ * whether that call produced it or left the state untouched.
+ */
+public class TVState {
+
+    public static final int MIN_CHANNEL = 1;
+    public static final int MAX_CHANNEL = 5;
+
+    private static final long CHANNEL_MASK = 0xFFL;
+    private static final long POWER_BIT = 1L << 8;
+    private static final long CHANGED_BIT = 1L << 15;
+    private static final long VALUE_MASK = CHANNEL_MASK | POWER_BIT;
+    private static final int VERSION_SHIFT = 16;
+
+    private static final int TURN_ON = 0;
+    private static final int TURN_OFF = 1;
+    private static final int TOGGLE = 2;
+    private static final int CHANNEL_UP = 3;
+    private static final int CHANNEL_DOWN = 4;
+    private static final int SET_CHANNEL = 5;
+
+    private final AtomicLong word;
+
+    /**
+     * Creates a TV state that is OFF on channel 1 at version 0.
+     */
+    public TVState() {
+        this(false, MIN_CHANNEL, 0);
+    }
+
+    /**
+     * Creates a TV state with the given values.
+     *
+     * @param on The initial power state
+     * @param channel The initial channel
+     * @param version The initial version
+     */
+    public TVState(boolean on, int channel, long version) {
+        this.word = new AtomicLong(pack(on, channel, version));
+    }
+
+    /**
+     * Reads the current state word. Wait-free.
+     *
+     * @return The current state word
+     */
+    public long get() {
+        return word.get();
+    }
+
+    /**
+     * Turns the TV on.
+     *
+     * @return The resulting state word
+     */
+    public long turnOn() {
+        return update(TURN_ON, 0);
+    }
+
+    /**
+     * Turns the TV off, keeping the current channel.
+     *
+     * @return The resulting state word
+     */
+    public long turnOff() {
+        return update(TURN_OFF, 0);
+    }
+
+    /**
+     * Flips the power state.
+     *
+     * @return The resulting state word
+     */
+    public long toggle() {
+        return update(TOGGLE, 0);
+    }
+
+    /**
+     * Moves one channel up, wrapping around after the last channel. Has no effect while OFF.
+     *
+     * @return The resulting state word
+     */
+    public long channelUp() {
+        return update(CHANNEL_UP, 0);
+    }
+
+    /**
+     * Moves one channel down, wrapping around to the last channel. Has no effect while OFF.
+     *
+     * @return The resulting state word
+     */
+    public long channelDown() {
+        return update(CHANNEL_DOWN, 0);
+    }
+
+    /**
+     * Switches to the given channel. Has no effect while OFF.
+     *
+     * @param channel The channel to switch to
+     * @return The resulting state word
+     */
+    public long setChannel(int channel) {
+        return update(SET_CHANNEL, channel);
+    }
+
+    /**
+     * Replaces the state with one recovered from a {@link StateJournal}.
+     * Only meant to be called before the state is shared with other threads.
+     *
+     * @param state A state word written by an earlier run
+     */
+    void restore(long state) {
+        word.set(state & ~CHANGED_BIT);
+    }
+
+    private long update(int operation, int argument) {
+        while (true) {
+            long current = word.get();
+            long value = current & VALUE_MASK;
+            long next = apply(operation, argument, value);
+            if (next == value) {
+                return current;
+            }
+            long updated = next | ((version(current) + 1) << VERSION_SHIFT);
+            if (word.compareAndSet(current, updated)) {
+                return updated | CHANGED_BIT;
+            }
+        }
+    }
+
+    private static long apply(int operation, int argument, long value) {
+        boolean on = (value & POWER_BIT) != 0;
+        int channel = (int) (value & CHANNEL_MASK);
+        switch (operation) {
+            case TURN_ON:
+                return channel | POWER_BIT;
+            case TURN_OFF:
+                return channel;
+            case TOGGLE:
+                return value ^ POWER_BIT;
+            default:
+                break;
+        }
+        if (!on) {
+            return value;
+        }
+        switch (operation) {
+            case CHANNEL_UP:
+                return ((channel % MAX_CHANNEL) + 1) | POWER_BIT;
+            case CHANNEL_DOWN:
+                return ((channel == MIN_CHANNEL) ? MAX_CHANNEL : channel - 1) | POWER_BIT;
+            default:
+                return argument | POWER_BIT;
+        }
+    }
+
+    static long pack(boolean on, int channel, long version) {
+        return (version << VERSION_SHIFT) | (on ? POWER_BIT : 0) | (channel & CHANNEL_MASK);
+    }
+
+    public static boolean isOn(long state) {
+        return (state & POWER_BIT) != 0;
+    }
+
+    public static int channel(long state) {
+        return (int) (state & CHANNEL_MASK);
+    }
+
+    public static long version(long state) {
+        return state >>> VERSION_SHIFT;
+    }
+
+    /**
+     * Tells whether the update that returned this word changed the state.
+     *
+     * @param state A word returned by one of the update methods
+     * @return true if the call produced a new version
+     */
+    public static boolean changed(long state) {
+        return (state & CHANGED_BIT) != 0;
+    }
+}
@@ -0,0 +1,18 @@
+package org.socket;
+
+/**
+ * The protocols a command connection can speak. The server detects which one
+ * a client uses from the first byte it sends.
+ */
+public enum WireProtocol {
+    /**
+     * Newline-terminated decimal command codes answered with English sentences.
+     */
+    TEXT,
+
+    /**
+     * One-byte opcodes answered with a status byte and packed power/channel state,
+     * see {@link BinaryProtocol}.
+     */
+    BINARY
+}